@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.tools;
+
+import hudson.tools.ToolProperty;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Lookups and comparisons of toolsets with many installations, as done per
+ * build and when the installations are saved.
+ *
+ * @author rmohr
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChrootToolsetBenchmark {
+
+    @Param({"10", "500"})
+    public int installations;
+    private ChrootToolset[] toolsets;
+    private ChrootToolset[] copies;
+    private Map<String, ChrootToolset> index;
+
+    @Setup
+    public void setUp() {
+        toolsets = create();
+        copies = create();
+        index = ChrootToolset.DescriptorImpl.index(toolsets);
+    }
+
+    private ChrootToolset[] create() {
+        ChrootToolset[] result = new ChrootToolset[installations];
+        for (int i = 0; i < installations; i++) {
+            List<Repository> repos = new ArrayList<Repository>();
+            repos.add(new Repository("deb http://example.org/" + i + " sid main", "", "repo" + i));
+            List<ToolProperty<ChrootToolset>> properties = new ArrayList<ToolProperty<ChrootToolset>>();
+            properties.add(new ChrootToolsetProperty("echo " + i, "build-essential devscripts pkg" + i, "", "", repos));
+            result[i] = new ChrootToolset("sid-amd64-" + i, "", "pbuilder", properties);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public int lookupAll() {
+        int found = 0;
+        for (ChrootToolset tool : copies) {
+            if (index.get(tool.getName()) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public Map<String, ChrootToolset> rebuildIndex() {
+        return ChrootToolset.DescriptorImpl.index(toolsets);
+    }
+
+    /**
+     * Matching the saved installations against the old ones, as
+     * setInstallations does.
+     */
+    @Benchmark
+    public int matchInstallations() {
+        Map<ChrootToolset, ChrootToolset> old = new HashMap<ChrootToolset, ChrootToolset>();
+        for (ChrootToolset tool : toolsets) {
+            old.put(tool, tool);
+        }
+        int matched = 0;
+        for (ChrootToolset tool : copies) {
+            if (old.get(tool) != null) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    @Benchmark
+    public int hashCodes() {
+        int hash = 0;
+        for (ChrootToolset tool : copies) {
+            hash += tool.hashCode();
+        }
+        return hash;
+    }
+}
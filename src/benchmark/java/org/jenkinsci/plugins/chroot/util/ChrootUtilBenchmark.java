@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing of package and requirement file lists, which happens on every
+ * build.
+ *
+ * @author rmohr
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChrootUtilBenchmark {
+
+    @Param({"100", "10000"})
+    public int count;
+    private String packages;
+    private String files;
+
+    @Setup
+    public void setUp() {
+        StringBuilder p = new StringBuilder();
+        StringBuilder f = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            p.append("libpackage").append(i).append("-dev").append(i % 10 == 0 ? "\n" : " ");
+            f.append("debian/requirements-").append(i).append(".txt ");
+        }
+        packages = p.toString();
+        files = f.toString();
+    }
+
+    @Benchmark
+    public List<String> splitPackages() {
+        return ChrootUtil.splitPackages(packages);
+    }
+
+    @Benchmark
+    public List<String> splitFiles() {
+        return ChrootUtil.splitFiles(files);
+    }
+}
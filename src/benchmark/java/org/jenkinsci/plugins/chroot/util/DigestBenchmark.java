@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.FilePath;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashing and integrity checks of chroot images. The synthetic image is
+ * filled with random data, so neither the file system nor the disk can
+ * shortcut reading it.
+ *
+ * @author rmohr
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class DigestBenchmark {
+
+    @Param({"256", "2048"})
+    public int sizeMb;
+    @Param({"MD5", "CHUNKED_MD5"})
+    public String algorithm;
+    private File image;
+
+    @Setup(Level.Trial)
+    public void createImage() throws IOException, InterruptedException {
+        image = File.createTempFile("chroot-benchmark", ".tgz");
+        byte[] block = new byte[1024 * 1024];
+        Random random = new Random(42);
+        FileOutputStream out = new FileOutputStream(image);
+        try {
+            for (int i = 0; i < sizeMb; i++) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        } finally {
+            out.close();
+        }
+        System.setProperty(DigestAlgorithm.class.getName(), algorithm);
+        ChrootUtil.saveDigest(new FilePath(image));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteImage() throws IOException, InterruptedException {
+        FilePath _image = new FilePath(image);
+        ChrootUtil.deleteDigest(_image);
+        _image.delete();
+    }
+
+    @Benchmark
+    public String digest() throws IOException, InterruptedException {
+        return DigestAlgorithm.valueOf(algorithm).digest(image);
+    }
+
+    /**
+     * The usual case of a build: the fingerprint matches.
+     */
+    @Benchmark
+    public boolean verifyFingerprint() throws IOException, InterruptedException {
+        return ChrootUtil.isFileIntact(new FilePath(image));
+    }
+
+    /**
+     * An image without fingerprint has to be read completely.
+     */
+    @Benchmark
+    public boolean verifyWithoutFingerprint() throws IOException, InterruptedException {
+        FilePath _image = new FilePath(image);
+        ChrootUtil.getFingerprintFile(_image).delete();
+        return ChrootUtil.isFileIntact(_image);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Generation of the environment file PBuilderWorker.perform sources in the
+ * chroot.
+ *
+ * @author rmohr
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EnvironmentFileBenchmark {
+
+    @Param({"100", "5000"})
+    public int variables;
+    @Param({"64", "4096"})
+    public int valueLength;
+    private Map<String, String> environment;
+    private EnvironmentFile all;
+    private EnvironmentFile filtered;
+
+    @Setup
+    public void setUp() {
+        StringBuilder value = new StringBuilder();
+        while (value.length() < valueLength) {
+            value.append("it's a \"value\" with $HOME ");
+        }
+        environment = new TreeMap<String, String>();
+        for (int i = 0; i < variables; i++) {
+            environment.put("PARAMETER_" + i, value.substring(0, valueLength));
+        }
+        all = new EnvironmentFile(null, null);
+        filtered = new EnvironmentFile(Pattern.compile("PARAMETER_1.*"), Pattern.compile(".*_99"));
+    }
+
+    @Benchmark
+    public String renderAll() {
+        return all.render(environment);
+    }
+
+    @Benchmark
+    public String renderFiltered() {
+        return filtered.render(environment);
+    }
+}
@@ -37,6 +37,6 @@ public class Chroot extends Plugin {
     public void postInitialize() throws Exception
     {
         if (ChrootToolset.isEmpty() && !Main.isUnitTest)
-            ChrootToolFinder.configure();
+            ChrootToolFinder.configureAsync();
     }
 }
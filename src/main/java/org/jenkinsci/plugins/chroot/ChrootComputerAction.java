@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TransientComputerActionFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.jenkinsci.plugins.chroot.tools.ChrootToolFinder;
+import org.jenkinsci.plugins.chroot.util.HealthCache;
+import org.jenkinsci.plugins.chroot.util.NodeLimiter;
+
+/**
+ * Shows the state of the chroot tools on a node.
+ *
+ * @author rmohr
+ */
+public class ChrootComputerAction implements Action {
+
+    private final Computer computer;
+
+    public ChrootComputerAction(Computer computer) {
+        this.computer = computer;
+    }
+
+    public Computer getComputer() {
+        return computer;
+    }
+
+    public String getIconFileName() {
+        return "package.png";
+    }
+
+    public String getDisplayName() {
+        return "Chroot Environments";
+    }
+
+    public String getUrlName() {
+        return "chroot";
+    }
+
+    public List<HealthCache.Result> getHealthResults() {
+        Node node = computer.getNode();
+        if (node == null) {
+            return Collections.emptyList();
+        }
+        return HealthCache.getResults(node);
+    }
+
+    /**
+     * Returns the chroot tools found on the node, or null if it was not
+     * scanned yet.
+     */
+    public Map<String, String> getTools() {
+        Node node = computer.getNode();
+        return node == null ? null : ChrootToolFinder.getTools(node);
+    }
+
+    /**
+     * Returns how many setup slots of the node are in use, or null if setups
+     * are not limited.
+     */
+    public NodeLimiter.Occupancy getOccupancy() {
+        Node node = computer.getNode();
+        return node == null ? null : NodeLimiter.getOccupancy(node);
+    }
+
+    @Extension
+    public static class Factory extends TransientComputerActionFactory {
+
+        @Override
+        public Collection<? extends Action> createFor(Computer target) {
+            return Collections.singleton(new ChrootComputerAction(target));
+        }
+    }
+}
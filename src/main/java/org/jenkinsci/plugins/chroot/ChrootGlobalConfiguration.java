@@ -0,0 +1,260 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.util.FormValidation;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.chroot.util.EnvironmentFile;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Node independent settings of the chroot plugin.
+ *
+ * @author rmohr
+ */
+@Extension
+public class ChrootGlobalConfiguration extends GlobalConfiguration {
+
+    private long derivedImageCacheQuota = 10240;
+    private long packageCacheQuota = 4096;
+    private int provisioningConcurrency = 4;
+    private int imageRefreshInterval = 0;
+    private int updateTtl = 0;
+    private int healthCheckTtl = 10;
+    private int setupConcurrencyPerNode = 0;
+    private String environmentAllowlist = "";
+    private String environmentDenylist = "";
+    private int provisioningConcurrencyPerNode = 1;
+    private int peerTransferThreads = 4;
+    private String imageArchiveDirectory = "";
+    private int imageArchiveVersions = 3;
+
+    public ChrootGlobalConfiguration() {
+        load();
+    }
+
+    public static ChrootGlobalConfiguration get() {
+        return GlobalConfiguration.all().get(ChrootGlobalConfiguration.class);
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Chroot Environments";
+    }
+
+    /**
+     * Disk quota of the derived image cache per node in MB. 0 disables the
+     * cache.
+     */
+    public long getDerivedImageCacheQuota() {
+        return derivedImageCacheQuota;
+    }
+
+    public void setDerivedImageCacheQuota(long derivedImageCacheQuota) {
+        this.derivedImageCacheQuota = Math.max(0, derivedImageCacheQuota);
+    }
+
+    /**
+     * Size limit of the package cache per node in MB. 0 means unlimited.
+     */
+    public long getPackageCacheQuota() {
+        return packageCacheQuota;
+    }
+
+    public void setPackageCacheQuota(long packageCacheQuota) {
+        this.packageCacheQuota = Math.max(0, packageCacheQuota);
+    }
+
+    /**
+     * Maximal number of images which are provisioned at the same time.
+     */
+    public int getProvisioningConcurrency() {
+        return provisioningConcurrency;
+    }
+
+    public void setProvisioningConcurrency(int provisioningConcurrency) {
+        this.provisioningConcurrency = Math.max(1, provisioningConcurrency);
+    }
+
+    /**
+     * Maximal number of images which are provisioned on one node at the same
+     * time.
+     */
+    public int getProvisioningConcurrencyPerNode() {
+        return provisioningConcurrencyPerNode;
+    }
+
+    public void setProvisioningConcurrencyPerNode(int provisioningConcurrencyPerNode) {
+        this.provisioningConcurrencyPerNode = Math.max(1, provisioningConcurrencyPerNode);
+    }
+
+    /**
+     * Interval in hours in which node images are updated in the background.
+     * 0 disables the refresh.
+     */
+    public int getImageRefreshInterval() {
+        return imageRefreshInterval;
+    }
+
+    public void setImageRefreshInterval(int imageRefreshInterval) {
+        this.imageRefreshInterval = Math.max(0, imageRefreshInterval);
+    }
+
+    /**
+     * Age in hours up to which builds do not update the packages of a node
+     * image. 0 means that builds always update.
+     */
+    public int getUpdateTtl() {
+        return updateTtl;
+    }
+
+    public void setUpdateTtl(int updateTtl) {
+        this.updateTtl = Math.max(0, updateTtl);
+    }
+
+    /**
+     * Time in minutes for which the result of a health check of a node is
+     * reused.
+     */
+    public int getHealthCheckTtl() {
+        return healthCheckTtl;
+    }
+
+    public void setHealthCheckTtl(int healthCheckTtl) {
+        this.healthCheckTtl = Math.max(0, healthCheckTtl);
+    }
+
+    /**
+     * Maximal number of chroot environments which are set up on one node at
+     * the same time. 0 means unlimited.
+     */
+    public int getSetupConcurrencyPerNode() {
+        return setupConcurrencyPerNode;
+    }
+
+    public void setSetupConcurrencyPerNode(int setupConcurrencyPerNode) {
+        this.setupConcurrencyPerNode = Math.max(0, setupConcurrencyPerNode);
+    }
+
+    /**
+     * Number of chunks of an image which are fetched from a peer node at the
+     * same time. 0 builds every image on its node.
+     */
+    public int getPeerTransferThreads() {
+        return peerTransferThreads;
+    }
+
+    public void setPeerTransferThreads(int peerTransferThreads) {
+        this.peerTransferThreads = Math.max(0, peerTransferThreads);
+    }
+
+    /**
+     * Directory on the controller in which built images are archived. Empty
+     * means chroot-images in the Jenkins home.
+     */
+    public String getImageArchiveDirectory() {
+        return imageArchiveDirectory;
+    }
+
+    public void setImageArchiveDirectory(String imageArchiveDirectory) {
+        this.imageArchiveDirectory = Util.fixNull(imageArchiveDirectory).trim();
+    }
+
+    /**
+     * Number of image versions which are archived per toolset. 0 disables
+     * the archive.
+     */
+    public int getImageArchiveVersions() {
+        return imageArchiveVersions;
+    }
+
+    public void setImageArchiveVersions(int imageArchiveVersions) {
+        this.imageArchiveVersions = Math.max(0, imageArchiveVersions);
+    }
+
+    /**
+     * Regular expression of the environment variables which are passed into
+     * the chroot. Empty means all.
+     */
+    public String getEnvironmentAllowlist() {
+        return environmentAllowlist;
+    }
+
+    public void setEnvironmentAllowlist(String environmentAllowlist) {
+        this.environmentAllowlist = Util.fixNull(environmentAllowlist).trim();
+    }
+
+    /**
+     * Regular expression of the environment variables which are not passed
+     * into the chroot. Empty means none.
+     */
+    public String getEnvironmentDenylist() {
+        return environmentDenylist;
+    }
+
+    public void setEnvironmentDenylist(String environmentDenylist) {
+        this.environmentDenylist = Util.fixNull(environmentDenylist).trim();
+    }
+
+    public EnvironmentFile getEnvironmentFile() {
+        return EnvironmentFile.of(environmentAllowlist, environmentDenylist);
+    }
+
+    public FormValidation doCheckEnvironmentAllowlist(@QueryParameter String value) {
+        return checkPattern(value);
+    }
+
+    public FormValidation doCheckEnvironmentDenylist(@QueryParameter String value) {
+        return checkPattern(value);
+    }
+
+    private static FormValidation checkPattern(String value) {
+        try {
+            Pattern.compile(Util.fixNull(value).trim());
+            return FormValidation.ok();
+        } catch (PatternSyntaxException ex) {
+            return FormValidation.error(ex.getDescription());
+        }
+    }
+
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        for (String field : new String[]{"environmentAllowlist", "environmentDenylist"}) {
+            try {
+                Pattern.compile(json.optString(field, "").trim());
+            } catch (PatternSyntaxException ex) {
+                throw new FormException("Invalid regular expression: " + ex.getDescription(), field);
+            }
+        }
+        req.bindJSON(this, json);
+        save();
+        return true;
+    }
+}
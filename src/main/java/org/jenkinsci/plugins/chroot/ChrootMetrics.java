@@ -0,0 +1,164 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.RootAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.chroot.builders.ChrootBuildAction;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Histograms of the phase durations of chroot builds per toolset and node
+ * since Jenkins started.
+ *
+ * @author rmohr
+ */
+@Extension
+@ExportedBean
+public class ChrootMetrics implements RootAction {
+
+    /**
+     * Upper bounds of the histogram buckets in milliseconds.
+     */
+    static final long[] BUCKETS = {1000, 10000, 30000, 60000, 300000, 900000, 3600000, Long.MAX_VALUE};
+    private static final Map<String, Histogram> histograms = new TreeMap<String, Histogram>();
+
+    public static void record(String node, ChrootBuildAction.Phase phase) {
+        String key = phase.getToolset() + "/" + node + "/" + phase.getName();
+        Histogram histogram;
+        synchronized (histograms) {
+            histogram = histograms.get(key);
+            if (histogram == null) {
+                histogram = new Histogram(phase.getToolset(), node, phase.getName());
+                histograms.put(key, histogram);
+            }
+        }
+        histogram.add(phase.getDuration());
+    }
+
+    @Exported(inline = true)
+    public List<Histogram> getHistograms() {
+        synchronized (histograms) {
+            return new ArrayList<Histogram>(histograms.values());
+        }
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    public String getIconFileName() {
+        return Jenkins.getInstance().hasPermission(Jenkins.ADMINISTER) ? "graph.png" : null;
+    }
+
+    public String getDisplayName() {
+        return "Chroot Metrics";
+    }
+
+    public String getUrlName() {
+        return "chroot-metrics";
+    }
+
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Histogram {
+
+        private final String toolset;
+        private final String node;
+        private final String phase;
+        private final long[] counts = new long[BUCKETS.length];
+        private long count;
+        private long total;
+        private long min = Long.MAX_VALUE;
+        private long max;
+
+        Histogram(String toolset, String node, String phase) {
+            this.toolset = toolset;
+            this.node = node;
+            this.phase = phase;
+        }
+
+        synchronized void add(long duration) {
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (duration <= BUCKETS[i]) {
+                    counts[i]++;
+                    break;
+                }
+            }
+            count++;
+            total += duration;
+            min = Math.min(min, duration);
+            max = Math.max(max, duration);
+        }
+
+        @Exported
+        public String getToolset() {
+            return toolset;
+        }
+
+        @Exported
+        public String getNode() {
+            return node;
+        }
+
+        @Exported
+        public String getPhase() {
+            return phase;
+        }
+
+        @Exported
+        public synchronized long getCount() {
+            return count;
+        }
+
+        @Exported
+        public synchronized long getMean() {
+            return count == 0 ? 0 : total / count;
+        }
+
+        @Exported
+        public synchronized long getMin() {
+            return count == 0 ? 0 : min;
+        }
+
+        @Exported
+        public synchronized long getMax() {
+            return max;
+        }
+
+        /**
+         * Number of durations per bucket, see {@link ChrootMetrics#BUCKETS}.
+         */
+        @Exported
+        public synchronized long[] getBuckets() {
+            return counts.clone();
+        }
+    }
+}
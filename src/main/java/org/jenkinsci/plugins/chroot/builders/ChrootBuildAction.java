@@ -0,0 +1,197 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.builders;
+
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import java.util.ArrayList;
+import java.util.List;
+import org.jenkinsci.plugins.chroot.ChrootMetrics;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Timings of the phases of the chroot build steps of a build.
+ *
+ * @author rmohr
+ */
+@ExportedBean
+public class ChrootBuildAction implements Action {
+
+    public static final String WAIT = "wait";
+    public static final String SETUP = "setup";
+    public static final String CLEANUP = "cleanup";
+    public static final String COPY = "copy";
+    public static final String VERIFY = "verify";
+    public static final String INSTALL = "install";
+    public static final String UPDATE = "update";
+    public static final String COMMAND = "command";
+    private final String node;
+    private final List<Phase> phases = new ArrayList<Phase>();
+    private long bytesCopied;
+    private long bytesHashed;
+    private int cacheHits;
+    private int cacheMisses;
+    private long compilerCacheHits;
+    private long compilerCacheMisses;
+
+    /**
+     * Returns the action of the build, adding it if necessary.
+     */
+    public static ChrootBuildAction of(AbstractBuild<?, ?> build) {
+        synchronized (build) {
+            ChrootBuildAction action = build.getAction(ChrootBuildAction.class);
+            if (action == null) {
+                action = new ChrootBuildAction(build.getBuiltOnStr());
+                build.addAction(action);
+            }
+            return action;
+        }
+    }
+
+    ChrootBuildAction(String node) {
+        this.node = node;
+    }
+
+    /**
+     * Records a phase of the given toolset which started at start, and adds
+     * it to the {@link ChrootMetrics}.
+     */
+    public Phase record(String toolset, String name, long start) {
+        Phase phase = new Phase(toolset, name, System.currentTimeMillis() - start);
+        synchronized (this) {
+            phases.add(phase);
+        }
+        ChrootMetrics.record(node, phase);
+        return phase;
+    }
+
+    public synchronized void addTransfer(long copied, long hashed) {
+        bytesCopied += copied;
+        bytesHashed += hashed;
+    }
+
+    /**
+     * Records whether the derived image cache had the requested image.
+     */
+    public synchronized void recordCacheLookup(boolean hit) {
+        if (hit) {
+            cacheHits++;
+        } else {
+            cacheMisses++;
+        }
+    }
+
+    /**
+     * Records the ccache hits and misses of a build command.
+     */
+    public synchronized void addCompilerCacheStats(long hits, long misses) {
+        compilerCacheHits += hits;
+        compilerCacheMisses += misses;
+    }
+
+    @Exported(inline = true)
+    public synchronized List<Phase> getPhases() {
+        return new ArrayList<Phase>(phases);
+    }
+
+    @Exported
+    public synchronized long getBytesCopied() {
+        return bytesCopied;
+    }
+
+    @Exported
+    public synchronized long getBytesHashed() {
+        return bytesHashed;
+    }
+
+    @Exported
+    public synchronized int getCacheHits() {
+        return cacheHits;
+    }
+
+    @Exported
+    public synchronized int getCacheMisses() {
+        return cacheMisses;
+    }
+
+    @Exported
+    public synchronized long getCompilerCacheHits() {
+        return compilerCacheHits;
+    }
+
+    @Exported
+    public synchronized long getCompilerCacheMisses() {
+        return compilerCacheMisses;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Chroot Timings";
+    }
+
+    public String getUrlName() {
+        return "chroot";
+    }
+
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Phase {
+
+        private final String toolset;
+        private final String name;
+        private final long duration;
+
+        Phase(String toolset, String name, long duration) {
+            this.toolset = toolset;
+            this.name = name;
+            this.duration = duration;
+        }
+
+        @Exported
+        public String getToolset() {
+            return toolset;
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Duration in milliseconds.
+         */
+        @Exported
+        public long getDuration() {
+            return duration;
+        }
+
+        public String getDurationString() {
+            return Util.getTimeSpanString(duration);
+        }
+    }
+}
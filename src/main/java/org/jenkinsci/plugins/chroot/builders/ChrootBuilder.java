@@ -26,27 +26,27 @@ package org.jenkinsci.plugins.chroot.builders;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
-import hudson.FilePath.FileCallable;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.AutoCompletionCandidates;
 import hudson.model.BuildListener;
-import hudson.model.FreeStyleProject;
-import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
-import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.ServletException;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.chroot.ChrootGlobalConfiguration;
 import org.jenkinsci.plugins.chroot.tools.ChrootToolset;
 import org.jenkinsci.plugins.chroot.util.ChrootUtil;
+import org.jenkinsci.plugins.chroot.util.DerivedImageCache;
+import org.jenkinsci.plugins.chroot.util.NodeLimiter;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.AncestorInPath;
@@ -118,27 +118,15 @@ public class ChrootBuilder extends Builder implements Serializable {
         return clear;
     }
 
-    private static final class LocalCopyTo implements FileCallable<Void> {
-
-        private final String target;
-
-        public LocalCopyTo(String target) {
-            this.target = target;
-        }
-
-        public Void invoke(File source, VirtualChannel channel) throws IOException, InterruptedException {
-            FilePath _source = new FilePath(source);
-            FilePath _target = new FilePath(new File(target));
-            _source.copyTo(_target);
-            return null;
-        }
-    }
-
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
         EnvVars env = build.getEnvironment(listener);
-        ChrootToolset installation = ChrootToolset.getInstallationByName(env.expand(this.chrootName));
+        ChrootBuildAction action = ChrootBuildAction.of(build);
+        String toolset = env.expand(this.chrootName);
+        ChrootToolset installation = ChrootToolset.getInstallationByName(toolset);
+        long start = System.currentTimeMillis();
         installation = installation.forNode(build.getBuiltOn(), listener);
+        action.record(toolset, ChrootBuildAction.SETUP, start);
         installation = installation.forEnvironment(env);
         if (installation.getHome() == null) {
             listener.fatalError("Installation of chroot environment failed");
@@ -148,21 +136,53 @@ public class ChrootBuilder extends Builder implements Serializable {
         }
         FilePath tarBall = new FilePath(build.getBuiltOn().getChannel(), installation.getHome());
 
-        FilePath workerTarBall = build.getWorkspace().child(env.expand(this.chrootName)).child(tarBall.getName());
+        // limit the number of environments set up on the node at the same time
+        FilePath workerTarBall;
+        start = System.currentTimeMillis();
+        NodeLimiter.Permit permit = NodeLimiter.acquire(build.getBuiltOn(), listener);
+        action.record(toolset, ChrootBuildAction.WAIT, start);
+        try {
+            workerTarBall = prepare(build, launcher, listener, env, installation, tarBall);
+        } finally {
+            permit.release();
+        }
+        if (workerTarBall == null) {
+            return ignoreExit;
+        }
+        start = System.currentTimeMillis();
+        try {
+            return ignoreExit || installation.getChrootWorker().perform(build, launcher, listener, workerTarBall, this.command, isLoginAsRoot());
+        } finally {
+            action.record(toolset, ChrootBuildAction.COMMAND, start);
+        }
+    }
+
+    /**
+     * Brings the working copy of the chroot environment up to date. Returns
+     * null if that failed.
+     */
+    private FilePath prepare(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, EnvVars env, ChrootToolset installation, FilePath tarBall) throws IOException, InterruptedException {
+        ChrootBuildAction action = ChrootBuildAction.of(build);
+        String toolset = env.expand(this.chrootName);
+        long start;
+        FilePath workerTarBall = build.getWorkspace().child(toolset).child(tarBall.getName());
         workerTarBall.getParent().mkdirs();
 
         // force environment recreation when clear is selected
         if (workerTarBall.exists() && isClear()) {
+            start = System.currentTimeMillis();
             boolean ret = installation.getChrootWorker().cleanUp(build, launcher, listener, workerTarBall);
+            action.record(toolset, ChrootBuildAction.CLEANUP, start);
             if (ret == false) {
                 listener.fatalError("Chroot environment cleanup failed");
-                return ret || ignoreExit;
+                return null;
             }
+            DerivedImageCache.getKeyFile(workerTarBall).delete();
         }
 
-        if (!workerTarBall.exists() || !ChrootUtil.isFileIntact(workerTarBall) || tarBall.lastModified() > workerTarBall.lastModified()) {
-            tarBall.act(new LocalCopyTo(workerTarBall.getRemote()));
-            ChrootUtil.getDigestFile(tarBall).act(new LocalCopyTo(ChrootUtil.getDigestFile(workerTarBall).getRemote()));
+        if (!installation.getChrootWorker().prepareImage(build, launcher, listener, tarBall, workerTarBall)) {
+            listener.fatalError("Preparing the chroot environment in the workspace failed.");
+            return null;
         }
 
         //install extra packages
@@ -174,25 +194,81 @@ public class ChrootBuilder extends Builder implements Serializable {
                 packages.addAll(ChrootUtil.splitPackages(packageFilePackages));
             } else {
                 listener.error("Requirements file '" + packagesFile + "' is not an existing file.");
-                return false || ignoreExit;
+                return null;
             }
         }
 
+        // reuse a cached environment with the same packages installed
+        boolean installed = false;
+        String key = null;
+        long quota = ChrootGlobalConfiguration.get().getDerivedImageCacheQuota() * 1024 * 1024;
+        FilePath cache = DerivedImageCache.getCache(build.getBuiltOn());
+        String baseDigest = ChrootUtil.loadDigest(tarBall);
+        if (!packages.isEmpty() && quota > 0 && baseDigest != null && !workerTarBall.isDirectory()) {
+            packages = DerivedImageCache.normalize(packages);
+            key = DerivedImageCache.getKey(baseDigest, packages);
+            if (key.equals(DerivedImageCache.loadKey(workerTarBall))) {
+                listener.getLogger().println("Requirements are already installed in the chroot environment.");
+                installed = true;
+            } else if (DerivedImageCache.checkout(cache, key, workerTarBall)) {
+                listener.getLogger().println("Using cached chroot environment with requirements installed.");
+                installed = true;
+            } else if (!baseDigest.equals(ChrootUtil.loadDigest(workerTarBall))) {
+                // only images derived straight from the node image are cached,
+                // not working copies with other packages installed
+                ChrootUtil.deleteDigest(workerTarBall);
+                DerivedImageCache.getKeyFile(workerTarBall).delete();
+                if (!installation.getChrootWorker().prepareImage(build, launcher, listener, tarBall, workerTarBall)) {
+                    listener.fatalError("Preparing the chroot environment in the workspace failed.");
+                    return null;
+                }
+            }
+            action.recordCacheLookup(installed);
+        }
+
         if (!packages.isEmpty()) {
-            boolean ret = installation.getChrootWorker().installPackages(build, launcher, listener, workerTarBall, packages, isForceInstall());
-            if (ret == false) {
-                listener.fatalError("Installing additional packages in chroot environment failed.");
-                return ret || ignoreExit;
+            // like a fresh installation, a cached one is not updated
+            if (!installed) {
+                start = System.currentTimeMillis();
+                boolean ret = installation.getChrootWorker().installPackages(build, launcher, listener, workerTarBall, packages, isForceInstall());
+                action.record(toolset, ChrootBuildAction.INSTALL, start);
+                if (ret == false) {
+                    listener.fatalError("Installing additional packages in chroot environment failed.");
+                    return null;
+                }
+                if (key != null) {
+                    installation.getChrootWorker().commitImage(workerTarBall);
+                    DerivedImageCache.publish(cache, key, workerTarBall, quota);
+                }
             }
-        } else if (!this.isNoUpdate()) {
+        } else if (!this.isNoUpdate() && !isFresh(tarBall, listener)) {
+            start = System.currentTimeMillis();
             boolean ret = installation.getChrootWorker().updateRepositories(build, launcher, listener, workerTarBall);
+            action.record(toolset, ChrootBuildAction.UPDATE, start);
             if (ret == false) {
                 listener.fatalError("Updating repository indices in chroot environment failed.");
-                return ret || ignoreExit;
+                return null;
             }
         }
-        ChrootUtil.saveDigest(workerTarBall);
-        return ignoreExit || installation.getChrootWorker().perform(build, launcher, listener, workerTarBall, this.command, isLoginAsRoot());
+        installation.getChrootWorker().commitImage(workerTarBall);
+        return workerTarBall;
+    }
+
+    /**
+     * Returns true if the node image was updated within the configured TTL,
+     * which makes the update of the working copy unnecessary.
+     */
+    private static boolean isFresh(FilePath image, BuildListener listener) throws IOException, InterruptedException {
+        int ttl = ChrootGlobalConfiguration.get().getUpdateTtl();
+        if (ttl == 0) {
+            return false;
+        }
+        long age = System.currentTimeMillis() - ChrootUtil.getLastUpdated(image);
+        if (age > TimeUnit.HOURS.toMillis(ttl)) {
+            return false;
+        }
+        listener.getLogger().println(String.format("Chroot environment was updated %s ago, skipping the update.", Util.getTimeSpanString(age)));
+        return true;
     }
 
     @Extension
@@ -35,9 +35,16 @@ import hudson.tools.ToolInstallation;
 import hudson.util.ArgumentListBuilder;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.chroot.builders.ChrootBuildAction;
 import org.jenkinsci.plugins.chroot.tools.Repository;
+import org.jenkinsci.plugins.chroot.util.ChrootUtil;
+import org.jenkinsci.plugins.chroot.util.Identity;
+import org.jenkinsci.plugins.chroot.util.ImageStore;
 
 /**
  *
@@ -45,6 +52,14 @@ import org.jenkinsci.plugins.chroot.tools.Repository;
  */
 public abstract class ChrootWorker implements ExtensionPoint {
 
+    private static volatile WorkerIndex workerIndex;
+
+    /**
+     * System property which replaces sudo, for example by env to run stand-in
+     * tools without root.
+     */
+    public static final String SUDO_PROPERTY = ChrootWorker.class.getName() + ".sudo";
+
     public abstract String getName();
 
     public abstract String getTool();
@@ -67,46 +82,129 @@ public abstract class ChrootWorker implements ExtensionPoint {
 
     public abstract boolean updateRepositories(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath tarBall) throws IOException, InterruptedException;
 
+    /**
+     * Makes target an intact and up to date working copy of the node image.
+     * By default the image is checked out from the node image store.
+     */
+    public boolean prepareImage(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath image, FilePath target) throws IOException, InterruptedException {
+        ChrootBuildAction action = ChrootBuildAction.of(build);
+        String toolset = target.getParent().getName();
+        long start = System.currentTimeMillis();
+        boolean current = target.exists() && ChrootUtil.isFileIntact(target) && image.lastModified() <= target.lastModified();
+        action.record(toolset, ChrootBuildAction.VERIFY, start);
+        if (!current) {
+            start = System.currentTimeMillis();
+            FilePath store = ImageStore.getStore(build.getBuiltOn());
+            ImageStore.Transfer transfer = ImageStore.checkout(store, image, target);
+            ImageStore.prune(store);
+            action.addTransfer(transfer.getCopied(), transfer.getHashed());
+            action.record(toolset, ChrootBuildAction.COPY, start);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the location of the node image of the tool, or null if the
+     * worker does not keep one.
+     */
+    public FilePath getNodeImage(ToolInstallation tool, Node node) {
+        return null;
+    }
+
+    /**
+     * Removes node images and caches of toolsets which were deleted or
+     * changed since. Called periodically for every online node.
+     */
+    public void collectGarbage(Node node, TaskListener log) throws IOException, InterruptedException {
+    }
+
+    /**
+     * Returns true if the worker can refresh its node images.
+     */
+    public boolean isRefreshable() {
+        return false;
+    }
+
+    /**
+     * Updates the packages of an existing node image in the background and
+     * swaps the result in without disturbing running builds. Returns false if
+     * the image was not refreshed.
+     */
+    public boolean refreshImage(ToolInstallation tool, Node node, TaskListener log) throws IOException, InterruptedException {
+        return false;
+    }
+
+    /**
+     * Records the current state of a working copy after it was modified.
+     */
+    public void commitImage(FilePath image) throws IOException, InterruptedException {
+        ChrootUtil.saveDigest(image);
+    }
+
+    /**
+     * Returns the command which runs the following command as root.
+     */
+    protected String getSudo() {
+        return System.getProperty(SUDO_PROPERTY, "sudo");
+    }
+
+    /**
+     * Returns the location of the tool, which can be replaced with the
+     * system property &lt;worker class&gt;.tool.
+     */
+    protected static String getTool(Class<? extends ChrootWorker> worker, String location) {
+        return System.getProperty(worker.getName() + ".tool", location);
+    }
+
     public static ExtensionList<ChrootWorker> all() {
         return Jenkins.getInstance().getExtensionList(ChrootWorker.class);
     }
 
     public static ChrootWorker getByName(String name) {
-        for (ChrootWorker w : ChrootWorker.all()) {
-            if (w.getName().equals(name)) {
-                return w;
-            }
-        }
+        ChrootWorker w = index().get(name);
         //TODO: make sure that this line is never read
-        assert false;
-        return null;
+        assert w != null;
+        return w;
     }
 
-    protected String getUserName(Launcher launcher) throws IOException, InterruptedException {
-        ArgumentListBuilder builder = new ArgumentListBuilder();
-        builder.add("whoami");
-        return run(launcher, builder);
+    /**
+     * Returns the workers by name. The index is rebuilt when the extension
+     * list changes, which only happens when plugins are loaded.
+     */
+    private static Map<String, ChrootWorker> index() {
+        ExtensionList<ChrootWorker> all = all();
+        WorkerIndex current = workerIndex;
+        if (current == null || current.list != all || current.size != all.size()) {
+            Map<String, ChrootWorker> byName = new HashMap<String, ChrootWorker>();
+            for (ChrootWorker w : all) {
+                if (!byName.containsKey(w.getName())) {
+                    byName.put(w.getName(), w);
+                }
+            }
+            current = new WorkerIndex(all, Collections.unmodifiableMap(byName));
+            workerIndex = current;
+        }
+        return current.byName;
     }
 
-    protected int getUID(Launcher launcher, String userName) throws IOException, InterruptedException {
-        ArgumentListBuilder builder = new ArgumentListBuilder();
-        builder.add("id").add("-u").add(userName);
-        Integer id = new Integer(run(launcher, builder));
-        return id;
-    }
+    private static final class WorkerIndex {
+
+        private final ExtensionList<ChrootWorker> list;
+        private final int size;
+        private final Map<String, ChrootWorker> byName;
 
-    protected int getGID(Launcher launcher, String userName) throws IOException, InterruptedException {
-        ArgumentListBuilder builder = new ArgumentListBuilder();
-        builder.add("id").add("-g").add(userName);
-        Integer id = new Integer(run(launcher, builder));
-        return id;
+        WorkerIndex(ExtensionList<ChrootWorker> list, Map<String, ChrootWorker> byName) {
+            this.list = list;
+            this.size = list.size();
+            this.byName = byName;
+        }
     }
 
-    protected String getGroupName(Launcher launcher, String userName) throws IOException, InterruptedException {
-        ArgumentListBuilder builder = new ArgumentListBuilder();
-        builder.add("id").add("-n").add("-g").add(userName);
-        String name = run(launcher, builder);
-        return name;
+    /**
+     * Returns the user and group the launcher runs processes as.
+     */
+    protected Identity getIdentity(Launcher launcher) throws IOException, InterruptedException {
+        return Identity.of(launcher);
     }
 
     protected String run(Launcher launcher, ArgumentListBuilder builder) throws IOException, InterruptedException {
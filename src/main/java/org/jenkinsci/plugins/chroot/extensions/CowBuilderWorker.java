@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.extensions;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.tools.ToolInstallation;
+import hudson.util.ArgumentListBuilder;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.chroot.builders.ChrootBuildAction;
+import org.jenkinsci.plugins.chroot.tools.ChrootToolset;
+import org.jenkinsci.plugins.chroot.util.BuildPlace;
+
+/**
+ * Keeps the chroot as an unpacked directory tree and uses cowbuilder, so
+ * that no step has to compress or decompress a tarball.
+ *
+ * Every workspace gets its own copy of the node tree (instant on file
+ * systems supporting reflinks). Commands are executed by cowbuilder in a
+ * hardlinked copy-on-write copy of that tree, which is thrown away
+ * afterwards.
+ *
+ * @author rmohr
+ */
+@Extension
+public final class CowBuilderWorker extends PBuilderWorker {
+
+    public static final String STAMP_SUFFIX = ".stamp";
+    public static final String ORIGIN_SUFFIX = ".origin";
+
+    @Override
+    public String getName() {
+        return "cowbuilder";
+    }
+
+    @Override
+    public String getTool() {
+        return getTool(CowBuilderWorker.class, "/usr/sbin/cowbuilder");
+    }
+
+    @Override
+    protected List<String> imageArguments(FilePath basePath) {
+        return Arrays.asList("--basepath", basePath.getRemote());
+    }
+
+    /**
+     * Returns the helper which copies and deletes trees as root, which can be
+     * replaced with the system property &lt;worker class&gt;.treeTool. Unlike
+     * plain cp and rm, it only touches cowbuilder trees of the plugin.
+     */
+    protected String getTreeTool() {
+        return System.getProperty(CowBuilderWorker.class.getName() + ".treeTool", "/usr/local/sbin/chroot-cow-tree");
+    }
+
+    @Override
+    protected String getHealthToken() {
+        return "--basepath";
+    }
+
+    @Override
+    protected FilePath getImage(FilePath rootDir, ToolInstallation tool) {
+        return rootDir.child(getName()).child(tool.getName() + ".cow");
+    }
+
+    @Override
+    protected String getToolsetName(FilePath basePath) {
+        return StringUtils.removeEnd(basePath.getName(), ".cow");
+    }
+
+    @Override
+    protected boolean convertImage(FilePath basePath, ChrootToolset toolset, Launcher launcher, TaskListener log) {
+        return false;
+    }
+
+    @Override
+    protected boolean fetchImage(ToolInstallation tool, ChrootToolset toolset, String platform, Node node, FilePath basePath, TaskListener log) {
+        // trees are not distributed between nodes
+        return false;
+    }
+
+    @Override
+    public boolean isRefreshable() {
+        // the tree can not be swapped atomically without a sudo mv
+        return false;
+    }
+
+    @Override
+    public boolean refreshImage(ToolInstallation tool, Node node, TaskListener log) {
+        return false;
+    }
+
+    @Override
+    protected BuildPlace getBuildPlace(Node node, FilePath basePath, Launcher launcher, TaskListener log) {
+        // cowbuilder hardlinks the tree into the build place, which can not
+        // cross file systems
+        return BuildPlace.disk();
+    }
+
+    @Override
+    protected void reportSetUp(FilePath basePath, long create, long customize, TaskListener log) {
+        // the tree is not compressed
+        log.getLogger().println(String.format("Creating %s took %d ms, customizing it took %d ms",
+                basePath.getName(), create, customize));
+    }
+
+    private static FilePath getStamp(FilePath basePath) {
+        return new FilePath(basePath.getParent(), basePath.getName() + STAMP_SUFFIX);
+    }
+
+    private static FilePath getOrigin(FilePath basePath) {
+        return new FilePath(basePath.getParent(), basePath.getName() + ORIGIN_SUFFIX);
+    }
+
+    @Override
+    protected boolean isImageUsable(FilePath basePath, ChrootToolset toolset) throws IOException, InterruptedException {
+        FilePath stamp = getStamp(basePath);
+        return basePath.isDirectory() && stamp.exists() && stamp.lastModified() > toolset.getLastModified();
+    }
+
+    @Override
+    protected void deleteImage(FilePath basePath, Launcher launcher, TaskListener log) throws IOException, InterruptedException {
+        getStamp(basePath).delete();
+        getOrigin(basePath).delete();
+        if (basePath.exists()) {
+            // the tree contains files owned by root
+            ArgumentListBuilder cmd = new ArgumentListBuilder().add(getSudo()).add(getTreeTool()).add("delete").add(basePath.getRemote());
+            if (launcher.launch().cmds(cmd).stdout(log).stderr(log.getLogger()).join() != 0) {
+                throw new IOException("Could not delete " + basePath.getRemote());
+            }
+        }
+    }
+
+    @Override
+    public void commitImage(FilePath basePath) throws IOException, InterruptedException {
+        getStamp(basePath).write(Long.toString(System.currentTimeMillis()), null);
+    }
+
+    @Override
+    public boolean prepareImage(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath image, FilePath target) throws IOException, InterruptedException {
+        String version = getStamp(image).readToString().trim();
+        FilePath origin = getOrigin(target);
+        if (target.isDirectory() && getStamp(target).exists() && origin.exists() && origin.readToString().trim().equals(version)) {
+            return true;
+        }
+        long start = System.currentTimeMillis();
+        deleteImage(target, launcher, listener);
+        target.getParent().mkdirs();
+        ArgumentListBuilder cmd = new ArgumentListBuilder().add(getSudo()).add(getTreeTool())
+                .add("copy").add(image.getRemote()).add(target.getRemote());
+        if (launcher.launch().cmds(cmd).stdout(listener).stderr(listener.getLogger()).join() != 0) {
+            return false;
+        }
+        origin.write(version, null);
+        commitImage(target);
+        ChrootBuildAction.of(build).record(getToolsetName(target), ChrootBuildAction.COPY, start);
+        return true;
+    }
+
+    @Override
+    public boolean cleanUp(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath basePath) throws IOException, InterruptedException {
+        deleteImage(basePath, launcher, listener);
+        return true;
+    }
+}
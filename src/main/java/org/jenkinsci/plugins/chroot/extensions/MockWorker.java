@@ -23,111 +23,487 @@
  */
 package org.jenkinsci.plugins.chroot.extensions;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.Node;
 import hudson.model.TaskListener;
 import hudson.tools.ToolInstallation;
 import hudson.util.ArgumentListBuilder;
+import hudson.util.QuotedStringTokenizer;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.chroot.ChrootGlobalConfiguration;
+import org.jenkinsci.plugins.chroot.builders.ChrootBuildAction;
+import org.jenkinsci.plugins.chroot.tools.ChrootToolset;
 import org.jenkinsci.plugins.chroot.tools.ChrootToolsetProperty;
 import org.jenkinsci.plugins.chroot.tools.Repository;
+import org.jenkinsci.plugins.chroot.util.ChrootUtil;
+import org.jenkinsci.plugins.chroot.util.Identity;
+import org.jenkinsci.plugins.chroot.util.PackageCache;
 
 /**
+ * Runs builds in mock chroots.
+ *
+ * The node image is a mock configuration directory, versioned by the
+ * configuration of the chroot. Setting it up fills mock's root and bootstrap
+ * caches, which are shared by all working copies of that version on the
+ * node. The package manager cache is shared by all versions of a toolset.
+ * A working copy is a configuration directory in the workspace whose root
+ * is unpacked from the root cache once and then reused with --no-clean until
+ * it is cleaned or the toolset changes.
  *
  * @author roman
  */
 @Extension
 public final class MockWorker extends ChrootWorker {
 
+    private static final Logger logger = Logger.getLogger("jenkins.plugins.chroot.extensions.MockWorker");
+    public static final String STAMP_SUFFIX = ".stamp";
+    public static final String ORIGIN_SUFFIX = ".origin";
+    private static final String SITE_DEFAULTS = "site-defaults.cfg";
+    private static final String PACKAGES_DIR = "packages";
+
     @Override
-    public FilePath setUp(ToolInstallation tool, Node node, TaskListener log) throws IOException, InterruptedException {
-        FilePath rootDir = node.getRootPath();
+    public String getName() {
+        return "mock";
+    }
+
+    @Override
+    public String getTool() {
+        return getTool(MockWorker.class, "/usr/bin/mock");
+    }
+
+    /**
+     * Returns the configuration directory of mock on the nodes, which can be
+     * replaced with the system property &lt;worker class&gt;.configPath.
+     */
+    static String getConfigPath() {
+        return System.getProperty(MockWorker.class.getName() + ".configPath", "/etc/mock");
+    }
+
+    private static String getDefaultConfig() {
+        return getConfigPath() + "/default.cfg";
+    }
+
+    private static FilePath getStamp(FilePath configDir) {
+        return new FilePath(configDir.getParent(), configDir.getName() + STAMP_SUFFIX);
+    }
+
+    private static FilePath getOrigin(FilePath configDir) {
+        return new FilePath(configDir.getParent(), configDir.getName() + ORIGIN_SUFFIX);
+    }
+
+    /**
+     * Returns the mock arguments which select the configuration of an image
+     * or a working copy. The chroot is named like the toolset.
+     */
+    private ArgumentListBuilder mock(FilePath configDir, String action) {
+        return new ArgumentListBuilder().add(getTool()).add(action)
+                .add("-r").add(configDir.getName())
+                .add("--configdir").add(configDir.getRemote())
+                .add("--resultdir").add(configDir.child("result").getRemote());
+    }
+
+    /**
+     * Returns the directory which holds the root and bootstrap caches of one
+     * version of a toolset.
+     */
+    private FilePath getCacheDir(Node node, String toolset, String version) {
+        return PackageCache.getCache(node, getName()).child(toolset).child(version);
+    }
+
+    /**
+     * Returns the package manager cache of a toolset, which survives changes
+     * of the toolset.
+     */
+    private FilePath getPackageCacheDir(Node node, String toolset) {
+        return PackageCache.getCache(node, getName()).child(toolset).child(PACKAGES_DIR);
+    }
+
+    /**
+     * Returns the settings which place the chroot of a configuration
+     * directory. All working copies of a toolset version share the root and
+     * bootstrap caches, all versions of a toolset share the package manager
+     * cache.
+     */
+    static String getOverrides(String name, FilePath basedir, FilePath cacheDir, FilePath packageCacheDir, FilePath bindMount) {
+        StringBuilder cfg = new StringBuilder()
+                .append(String.format("config_opts['root'] = '%s'\n", name))
+                .append(String.format("config_opts['basedir'] = '%s'\n", basedir.getRemote()))
+                .append(String.format("config_opts['cache_topdir'] = '%s'\n", cacheDir.getRemote()))
+                .append("config_opts['plugin_conf']['root_cache_enable'] = True\n")
+                // a new version gets a new cache directory, so age does not matter
+                .append("config_opts['plugin_conf']['root_cache_opts']['age_check'] = False\n")
+                .append("config_opts['plugin_conf']['root_cache_opts']['max_age_days'] = 365\n")
+                .append("config_opts['plugin_conf']['yum_cache_enable'] = True\n")
+                .append(String.format("config_opts['plugin_conf']['yum_cache_opts']['dir'] = '%s/yum_cache/'\n", packageCacheDir.getRemote()))
+                .append("config_opts['plugin_conf']['dnf_cache_enable'] = True\n")
+                .append(String.format("config_opts['plugin_conf']['dnf_cache_opts']['dir'] = '%s/dnf_cache/'\n", packageCacheDir.getRemote()));
+        if (bindMount != null) {
+            cfg.append("config_opts['plugin_conf']['bind_mount_enable'] = True\n")
+                    .append(String.format("config_opts['plugin_conf']['bind_mount_opts']['dirs'].append(('%s', '%s'))\n",
+                    bindMount.getRemote(), bindMount.getRemote()));
+        }
+        return cfg.toString();
+    }
+
+    /**
+     * Returns the configuration lines which add the packages and repositories
+     * of the toolset to the chroot, so that they end up in the root cache.
+     */
+    static String getToolsetConfig(ChrootToolsetProperty property) {
+        StringBuilder cfg = new StringBuilder();
+        if (property == null) {
+            return "";
+        }
+        if (!property.getPackagesList().isEmpty()) {
+            cfg.append(String.format("config_opts['chroot_setup_cmd'] += ' %s'\n", StringUtils.join(property.getPackagesList(), " ")));
+        }
+        cfg.append(getRepositoryConfig(property.getRepos()));
+        return cfg.toString();
+    }
+
+    static String getRepositoryConfig(List<Repository> repositories) {
+        StringBuilder cfg = new StringBuilder();
+        for (Repository repo : repositories) {
+            boolean signed = !Strings.isNullOrEmpty(repo.getKeyfile());
+            String section = String.format("\n[%s]\nname=%s\nbaseurl=%s\nenabled=1\ngpgcheck=%d\n",
+                    repo.getName(), repo.getName(), repo.getUri(), signed ? 1 : 0);
+            if (signed) {
+                section += "gpgkey=" + repo.getKeyfile() + "\n";
+            }
+            for (String key : new String[]{"yum.conf", "dnf.conf"}) {
+                cfg.append(String.format("if '%s' in config_opts:\n    config_opts['%s'] += \"\"\"%s\"\"\"\n", key, key, section));
+            }
+        }
+        return cfg.toString();
+    }
+
+    /**
+     * Returns the configuration lines which disable the signature check of
+     * all repository sections.
+     */
+    static String getUnsignedConfig() {
+        StringBuilder cfg = new StringBuilder();
+        for (String key : new String[]{"yum.conf", "dnf.conf"}) {
+            cfg.append(String.format("if '%s' in config_opts:\n    config_opts['%s'] = config_opts['%s'].replace('gpgcheck=1', 'gpgcheck=0')\n", key, key, key));
+        }
+        return cfg.toString();
+    }
+
+    /**
+     * Returns the version of a toolset on a node, which changes whenever the
+     * configuration of the chroot changes.
+     */
+    static String getVersion(String defaultConfig, ChrootToolsetProperty property) {
+        StringBuilder content = new StringBuilder(defaultConfig).append('\0').append(getToolsetConfig(property));
+        if (property != null) {
+            content.append('\0').append(Strings.nullToEmpty(property.getSetupArguments()))
+                    .append('\0').append(Strings.nullToEmpty(property.getSetupCommand()));
+        }
+        return Util.getDigestOf(content.toString()).substring(0, 12);
+    }
+
+    /**
+     * Returns the chroot configuration of a configuration directory. It
+     * includes the default configuration of the node, whose relative includes
+     * refer to /etc/mock, and adds the toolset and the overrides afterwards,
+     * because mock reads the site defaults first and the default configuration
+     * sets the root again.
+     */
+    static String getConfig(FilePath configDir, String toolsetConfig, String overrides) {
+        return new StringBuilder()
+                .append(String.format("config_opts['config_path'] = '%s'\n", getConfigPath()))
+                .append(String.format("include('%s')\n", getDefaultConfig()))
+                .append(String.format("config_opts['config_path'] = '%s'\n", configDir.getRemote()))
+                .append(toolsetConfig)
+                .append(overrides)
+                .toString();
+    }
+
+    /**
+     * Writes a configuration directory based on the default configuration of
+     * the node.
+     */
+    private void writeConfig(Node node, FilePath configDir, String overrides, String toolsetConfig) throws IOException, InterruptedException {
+        configDir.mkdirs();
+        configDir.child(configDir.getName() + ".cfg").write(getConfig(configDir, toolsetConfig, overrides), null);
+        node.createPath(getConfigPath() + "/logging.ini").copyTo(configDir.child("logging.ini"));
+        configDir.child(SITE_DEFAULTS).write(String.format("# the chroot is configured in %s.cfg\n", configDir.getName()), null);
+    }
+
+    /**
+     * Returns the node image of the current version of the toolset, a
+     * configuration directory named like the toolset.
+     */
+    private FilePath getConfigDir(ToolInstallation tool, Node node) throws IOException, InterruptedException {
+        String version = getVersion(node.createPath(getDefaultConfig()).readToString(),
+                tool.getProperties().get(ChrootToolsetProperty.class));
+        return node.getRootPath().child(getName()).child(tool.getName()).child(version).child(tool.getName());
+    }
 
-        // get path to tarball
-        FilePath tarBall;
+    /**
+     * Removes the node images and caches of old versions and of toolsets
+     * which do not exist anymore, as well as the temporary configuration
+     * directories earlier versions of this plugin left in the node root.
+     * The package manager cache of existing toolsets is kept.
+     */
+    @Override
+    public void collectGarbage(Node node, TaskListener log) throws IOException, InterruptedException {
+        // only nodes mock ran on have anything to collect
+        if (node.getRootPath().child(getName()).isDirectory() || PackageCache.getCache(node, getName()).isDirectory()) {
+            collectGarbage(node, node.createLauncher(log), log);
+        }
+    }
+
+    void collectGarbage(Node node, Launcher launcher, TaskListener log) throws IOException, InterruptedException {
+        Map<String, String> current = new HashMap<String, String>();
+        String defaultConfig = node.createPath(getDefaultConfig()).readToString();
+        for (ChrootToolset toolset : ChrootToolset.list()) {
+            current.put(toolset.getName(), getVersion(defaultConfig, toolset.getProperties().get(ChrootToolsetProperty.class)));
+        }
+        FilePath images = node.getRootPath().child(getName());
+        FilePath caches = PackageCache.getCache(node, getName());
+        for (FilePath dir : list(images)) {
+            String version = current.get(dir.getName());
+            for (FilePath versionDir : list(dir)) {
+                if (versionDir.getName().equals(version)) {
+                    continue;
+                }
+                FilePath configDir = versionDir.child(dir.getName());
+                if (configDir.child(SITE_DEFAULTS).exists()) {
+                    // the caches are owned by mock
+                    launch(launcher, mock(configDir, "--scrub=root-cache").add("--scrub=chroot"), log);
+                }
+                delete(versionDir, log);
+            }
+        }
+        for (FilePath dir : list(caches)) {
+            boolean deleted = !current.containsKey(dir.getName());
+            for (FilePath versionDir : list(dir)) {
+                String name = versionDir.getName();
+                if (!name.equals(PACKAGES_DIR) && !name.equals(current.get(dir.getName()))) {
+                    // the package manager cache goes with the toolset only
+                    scrub(node, launcher, dir.getName(), versionDir, dir.child(PACKAGES_DIR), deleted, log);
+                    delete(versionDir, log);
+                }
+            }
+            if (deleted) {
+                delete(dir, log);
+            }
+        }
+        for (FilePath dir : list(node.getRootPath())) {
+            String name = dir.getName().replaceAll("\\d+$", "");
+            if (!name.equals(dir.getName()) && current.containsKey(name) && dir.child(SITE_DEFAULTS).exists()) {
+                delete(dir, log);
+            }
+        }
+    }
+
+    /**
+     * Removes the caches of a toolset version, which are owned by root,
+     * through mock with a temporary configuration directory, because the
+     * node image which created them might be gone already.
+     */
+    private void scrub(Node node, Launcher launcher, String toolset, FilePath cacheDir, FilePath packageCacheDir, boolean packages, TaskListener log) throws IOException, InterruptedException {
+        FilePath tmp = node.getRootPath().createTempDir(".mock-scrub", "");
+        try {
+            FilePath configDir = tmp.child(toolset);
+            writeConfig(node, configDir, getOverrides(toolset, configDir.child("build"), cacheDir, packageCacheDir, null), "");
+            ArgumentListBuilder cmd = mock(configDir, "--scrub=root-cache").add("--scrub=bootstrap").add("--scrub=chroot");
+            if (packages) {
+                cmd.add("--scrub=yum-cache").add("--scrub=dnf-cache");
+            }
+            launch(launcher, cmd, log);
+        } finally {
+            delete(tmp, TaskListener.NULL);
+        }
+    }
+
+    private static List<FilePath> list(FilePath dir) throws IOException, InterruptedException {
+        return dir.isDirectory() ? dir.listDirectories() : Collections.<FilePath>emptyList();
+    }
+
+    private static void delete(FilePath dir, TaskListener log) throws InterruptedException {
+        try {
+            dir.deleteRecursive();
+            log.getLogger().println("Removed " + dir.getRemote());
+        } catch (IOException ex) {
+            log.error("Could not remove " + dir.getRemote() + ": " + ex.getMessage());
+        }
+    }
+
+    private int launch(Launcher launcher, ArgumentListBuilder cmd, TaskListener log) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        int ret = launcher.launch().cmds(cmd).stdout(log).stderr(log.getLogger()).join();
+        log.getLogger().println(String.format("mock %s took %d ms", cmd.toList().get(1), System.currentTimeMillis() - start));
+        return ret;
+    }
+
+    /**
+     * Runs a mock action which may download packages and records the
+     * downloads in the package cache statistics of the toolset.
+     */
+    private int launchWithPackageCache(Node node, String toolset, Launcher launcher, ArgumentListBuilder cmd, TaskListener log) throws IOException, InterruptedException {
+        FilePath cache = getPackageCacheDir(node, toolset);
+        Set<String> snapshot = PackageCache.snapshotTree(cache);
+        int ret = launch(launcher, cmd, log);
+        PackageCache.record(cache, snapshot, toolset);
+        return ret;
+    }
+
+    @Override
+    public FilePath setUp(ToolInstallation tool, Node node, TaskListener log) throws IOException, InterruptedException {
         ChrootToolsetProperty property = tool.getProperties().get(ChrootToolsetProperty.class);
-        // take the property into account if it exists
-        tarBall = rootDir.child(tool.getName() + ".tgz");
-        FilePath chrootDir = node.getRootPath().createTempDir(tool.getName(), "");
-        FilePath cacheDir = chrootDir.child("cache");
-        FilePath buildDir = chrootDir.child("build");
-        FilePath resultDir = chrootDir.child("result");
-
-        if (!tarBall.exists()) {
-            // copy /etc/mock/default.cfg to this location
-            FilePath system_default_cfg = node.createPath("/etc/mock/default.cfg");
-            FilePath system_logging_cfg = node.createPath("/etc/mock/logging.ini");
-            FilePath default_cfg = new FilePath(chrootDir, tool.getName() + ".cfg");
-            FilePath logging_cfg = new FilePath(chrootDir, "logging.ini");
-            FilePath site_default_cfg = new FilePath(chrootDir, "site-defaults.cfg");
-
-            system_default_cfg.copyTo(default_cfg);
-            system_logging_cfg.copyTo(logging_cfg);
-
-            String cfg_content = String.format(
-                    "config_opts['basedir'] = '%s'\n"
-                    + "config_opts['cache_topdir'] = '%s'\n",
-                    buildDir.getRemote(),
-                    cacheDir.getRemote());
-
-            site_default_cfg.write(cfg_content, null);
-            ArgumentListBuilder cmd = new ArgumentListBuilder();
-            cmd.add(getTool())
-                    .add("-r").add(default_cfg.getBaseName())
-                    .add("--configdir").add(chrootDir.getRemote())
-                    .add("--resultdir").add(resultDir.getRemote())
-                    .add("--init");
-            Launcher launcher = node.createLauncher(log);
-            int ret = launcher.launch().cmds(cmd).stdout(log).stderr(log.getLogger()).join();
-        }
-        return tarBall;
+        FilePath configDir = getConfigDir(tool, node);
+        if (getStamp(configDir).exists()) {
+            return configDir;
+        }
+        Launcher launcher = node.createLauncher(log);
+        String version = configDir.getParent().getName();
+        log.getLogger().println(String.format("Setting up version %s of %s", version, tool.getName()));
+        writeConfig(node, configDir, getOverrides(tool.getName(), configDir.child("build"),
+                getCacheDir(node, tool.getName(), version), getPackageCacheDir(node, tool.getName()), null), getToolsetConfig(property));
+        ArgumentListBuilder init = mock(configDir, "--init");
+        if (property != null && !Strings.isNullOrEmpty(property.getSetupArguments())) {
+            init.add(QuotedStringTokenizer.tokenize(property.getSetupArguments()));
+        }
+        // fills the root cache
+        if (launchWithPackageCache(node, tool.getName(), launcher, init, log) != 0) {
+            log.fatalError("Could not setup chroot environment");
+            return null;
+        }
+        launch(launcher, mock(configDir, "--scrub=chroot"), log);
+        commitImage(configDir);
+        collectGarbage(node, launcher, log);
+        return configDir;
     }
 
     @Override
-    public String getName() {
-        return "mock";
+    public FilePath getNodeImage(ToolInstallation tool, Node node) {
+        try {
+            return getConfigDir(tool, node);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not determine the version of " + tool.getName(), ex);
+        } catch (InterruptedException ex) {
+            logger.log(Level.WARNING, "Could not determine the version of " + tool.getName(), ex);
+        }
+        return null;
     }
 
     @Override
-    public String getTool() {
-        return "/usr/bin/mock";
+    public void commitImage(FilePath configDir) throws IOException, InterruptedException {
+        getStamp(configDir).write(Long.toString(System.currentTimeMillis()), null);
+    }
+
+    /**
+     * Unpacks the root cache into the working copy, unless its root is
+     * already initialized from the current node image.
+     */
+    @Override
+    public boolean prepareImage(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath image, FilePath target) throws IOException, InterruptedException {
+        String version = getStamp(image).readToString().trim();
+        FilePath origin = getOrigin(target);
+        if (target.isDirectory() && getStamp(target).exists() && origin.exists() && origin.readToString().trim().equals(version)) {
+            return true;
+        }
+        long start = System.currentTimeMillis();
+        if (target.isDirectory()) {
+            launch(launcher, mock(target, "--scrub=chroot"), listener);
+        }
+        getStamp(target).delete();
+        ChrootToolset toolset = ChrootToolset.getInstallationByName(image.getName());
+        ChrootToolsetProperty property = toolset != null ? toolset.getProperties().get(ChrootToolsetProperty.class) : null;
+        Node node = build.getBuiltOn();
+        writeConfig(node, target, getOverrides(image.getName(), target.child("build"),
+                getCacheDir(node, image.getName(), image.getParent().getName()), getPackageCacheDir(node, image.getName()),
+                build.getWorkspace()), getToolsetConfig(property));
+        if (launchWithPackageCache(node, image.getName(), launcher, mock(target, "--init"), listener) != 0) {
+            return false;
+        }
+        // the setup command is not part of the root cache
+        if (property != null && !Strings.isNullOrEmpty(property.getSetupCommand())) {
+            FilePath script = target.createTextTempFile("setup", ".sh", "set -e\n" + property.getSetupCommand() + "\n");
+            int ret = launchWithPackageCache(node, image.getName(), launcher,
+                    mock(target, "--no-clean").add("--chroot").add("bash " + ChrootUtil.shellQuote(script.getRemote())), listener);
+            script.delete();
+            if (ret != 0) {
+                listener.fatalError("Could not customize the chroot environment.");
+                return false;
+            }
+        }
+        origin.write(version, null);
+        commitImage(target);
+        ChrootBuildAction.of(build).record(image.getName(), ChrootBuildAction.COPY, start);
+        return true;
     }
 
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath tarBall, String commands, boolean runAsRoot) throws IOException, InterruptedException {
-        String userName = super.getUserName(launcher);
-        int id = super.getUID(launcher, userName);
-        commands = "cd " + build.getWorkspace().getRemote() + "\n" + commands;
-        FilePath script = build.getWorkspace().createTextTempFile("chroot", ".sh", commands);
-
-//            String cfg_content = String.format(
-//                    "config_opts['basedir'] = '%s'\n"
-//                    + "config_opts['cache_topdir'] = '%s'\n"
-//                    + "config_opts['plugin_conf']['bind_mount_enable'] = True\n"
-//                    + "config_opts['plugin_conf']['bind_mount_opts']['dirs'].append(('%s', '%s' ))\n"
-//                    + "%s", rootDir.getRemote(),
-//                    rootDir.getRemote(),
-//                    node.getRootPath().absolutize().getRemote(),
-//                    node.getRootPath().absolutize().getRemote(),
-//                    default_cfg.readToString());
-
-
-        ArgumentListBuilder b = new ArgumentListBuilder().add(getTool()).add(script);
-
-        int exitCode = launcher.launch().cmds(b).stdout(listener).stderr(listener.getLogger()).join();
+        Identity identity = getIdentity(launcher);
+        EnvVars environment = build.getEnvironment(listener);
+        String exports = ChrootGlobalConfiguration.get().getEnvironmentFile().render(environment);
+        FilePath envFile = build.getWorkspace().createTextTempFile("chroot", ".env", exports);
+        StringBuilder content = new StringBuilder()
+                .append(". ").append(envFile.getRemote()).append("\n")
+                .append("set -e\nset -x verbose\n")
+                .append("cd ").append(build.getWorkspace().getRemote()).append("\n")
+                .append(commands).append("\n");
+        FilePath script = build.getWorkspace().createTextTempFile("chroot", ".sh", content.toString());
+        String run = "bash " + ChrootUtil.shellQuote(script.getRemote());
+        if (runAsRoot) {
+            // only files created or changed by the build need a new owner
+            run = String.format("marker=$(mktemp)\nret=1; %s && ret=0\n%sexit $ret\n", run,
+                    PBuilderWorker.getOwnershipFixup(build.getWorkspace(), tarBall,
+                    Integer.toString(identity.getUID()), Integer.toString(identity.getGID())));
+        }
+        ArgumentListBuilder b = mock(tarBall, "--no-clean");
+        if (!runAsRoot) {
+            // run as mockbuild, which has the uid of the jenkins user
+            b.add("--unpriv");
+        }
+        b.add("--chroot").add(run);
+        int exitCode = launcher.launch().cmds(b).envs(environment).stdout(listener).stderr(listener.getLogger()).join();
         script.delete();
+        envFile.delete();
         return exitCode == 0;
     }
 
     @Override
     public boolean installPackages(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath tarBall, List<String> packages, boolean forceInstall) throws IOException, InterruptedException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        ArgumentListBuilder b = mock(tarBall, "--no-clean").add("--install").add(packages);
+        if (!forceInstall) {
+            return launchWithPackageCache(build.getBuiltOn(), tarBall.getName(), launcher, b, listener) == 0;
+        }
+        // signatures are only ignored for this installation
+        FilePath cfg = tarBall.child(tarBall.getName() + ".cfg");
+        String content = cfg.readToString();
+        cfg.write(content + getUnsignedConfig(), null);
+        try {
+            return launchWithPackageCache(build.getBuiltOn(), tarBall.getName(), launcher, b, listener) == 0;
+        } finally {
+            cfg.write(content, null);
+        }
+    }
+
+    @Override
+    public boolean updateRepositories(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath tarBall) throws IOException, InterruptedException {
+        return launchWithPackageCache(build.getBuiltOn(), tarBall.getName(), launcher, mock(tarBall, "--no-clean").add("--update"), listener) == 0;
     }
 
     public List<String> getDefaultPackages() {
@@ -135,27 +511,50 @@ public final class MockWorker extends ChrootWorker {
     }
 
     @Override
-    public boolean addRepositories(FilePath tarBall, Launcher launcher, TaskListener log, List<Repository> Repositories) throws IOException, InterruptedException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public List<String> getFallbackPackages() {
+        return getDefaultPackages();
     }
 
+    /**
+     * Adds the repositories to the configuration. They are used from the
+     * next mock run on.
+     */
     @Override
-    public boolean cleanUp(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath tarBall) throws IOException, InterruptedException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public boolean addRepositories(FilePath tarBall, Launcher launcher, TaskListener log, List<Repository> repositories) throws IOException, InterruptedException {
+        if (repositories.size() > 0) {
+            FilePath cfg = tarBall.child(tarBall.getName() + ".cfg");
+            cfg.write(cfg.readToString() + getRepositoryConfig(repositories), null);
+        }
+        return true;
     }
 
     @Override
-    public boolean updateRepositories(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath tarBall) throws IOException, InterruptedException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public boolean cleanUp(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath tarBall) throws IOException, InterruptedException {
+        getStamp(tarBall).delete();
+        getOrigin(tarBall).delete();
+        if (tarBall.isDirectory() && launch(launcher, mock(tarBall, "--scrub=chroot"), listener) != 0) {
+            return false;
+        }
+        tarBall.deleteRecursive();
+        return true;
     }
 
     @Override
     public boolean healthCheck(Launcher launcher) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
-    }
-
-    @Override
-    public List<String> getFallbackPackages() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ArgumentListBuilder b = new ArgumentListBuilder().add(getTool()).add("--version");
+        try {
+            if (launcher.launch().cmds(b).stderr(stderr).stdout(stdout).join() == 0
+                    && stdout.toString().trim().matches("(?s)\\d+\\..*")) {
+                return true;
+            }
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, null, ex);
+        } catch (InterruptedException ex) {
+            logger.log(Level.SEVERE, null, ex);
+        }
+        logger.log(Level.SEVERE, stderr.toString());
+        return false;
     }
 }
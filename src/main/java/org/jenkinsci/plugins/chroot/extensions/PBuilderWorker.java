@@ -38,24 +38,40 @@ import hudson.util.ArgumentListBuilder;
 import hudson.util.QuotedStringTokenizer;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.chroot.ChrootGlobalConfiguration;
+import org.jenkinsci.plugins.chroot.builders.ChrootBuildAction;
 import org.jenkinsci.plugins.chroot.tools.ChrootToolset;
 import org.jenkinsci.plugins.chroot.tools.ChrootToolsetProperty;
 import org.jenkinsci.plugins.chroot.tools.Repository;
+import org.jenkinsci.plugins.chroot.util.BuildPlace;
 import org.jenkinsci.plugins.chroot.util.ChrootUtil;
+import org.jenkinsci.plugins.chroot.util.CompilerCache;
+import org.jenkinsci.plugins.chroot.util.Compression;
+import org.jenkinsci.plugins.chroot.util.Identity;
+import org.jenkinsci.plugins.chroot.util.ImageArchive;
+import org.jenkinsci.plugins.chroot.util.ImageRegistry;
+import org.jenkinsci.plugins.chroot.util.ImageStore;
+import org.jenkinsci.plugins.chroot.util.ImageTransfer;
+import org.jenkinsci.plugins.chroot.util.PackageCache;
+import org.jenkinsci.plugins.chroot.util.Platform;
 
 /**
  *
  * @author rmohr
  */
 @Extension
-public final class PBuilderWorker extends ChrootWorker {
+public class PBuilderWorker extends ChrootWorker {
 
     private static final Logger logger = Logger.getLogger("jenkins.plugins.chroot.extensions.PBuilderWorker");
+    private static final String REFRESH_DIR = ".refresh";
 
     @Override
     public String getName() {
@@ -64,13 +80,171 @@ public final class PBuilderWorker extends ChrootWorker {
 
     @Override
     public String getTool() {
-        return "/usr/sbin/pbuilder";
+        return getTool(PBuilderWorker.class, "/usr/sbin/pbuilder");
     }
 
-    private ArgumentListBuilder defaultArgumentList(FilePath tarBall, String action) {
-        return new ArgumentListBuilder().add("sudo").add(getTool())
+    protected ArgumentListBuilder defaultArgumentList(FilePath tarBall, String action) throws IOException, InterruptedException {
+        return new ArgumentListBuilder().add(getSudo()).add(getTool())
                 .add(action)
-                .add("--basetgz").add(tarBall.getRemote());
+                .add(imageArguments(tarBall));
+    }
+
+    /**
+     * Returns the arguments which select the image to work on and how it is
+     * compressed.
+     */
+    protected List<String> imageArguments(FilePath tarBall) throws IOException, InterruptedException {
+        List<String> args = new ArrayList<String>(Arrays.asList("--basetgz", tarBall.getRemote()));
+        FilePath program = Compression.forImage(tarBall.getName()).getProgram(tarBall, getCompressionThreads(tarBall));
+        if (program != null) {
+            args.add("--compressprog");
+            args.add(program.getRemote());
+        }
+        return args;
+    }
+
+    /**
+     * Returns the location of the node image of the given tool.
+     */
+    protected FilePath getImage(FilePath rootDir, ToolInstallation tool) {
+        ChrootToolsetProperty property = tool.getProperties().get(ChrootToolsetProperty.class);
+        Compression compression = property != null ? property.getCompression() : Compression.GZIP;
+        return ChrootUtil.getImageFile(rootDir.child(getName()), tool.getName(), compression);
+    }
+
+    /**
+     * Returns the name of the toolset an image or a working copy of it
+     * belongs to.
+     */
+    protected String getToolsetName(FilePath tarBall) {
+        return Compression.stripSuffix(tarBall.getName());
+    }
+
+    private int getCompressionThreads(FilePath tarBall) {
+        ChrootToolset toolset = ChrootToolset.getInstallationByName(getToolsetName(tarBall));
+        if (toolset == null) {
+            return 0;
+        }
+        ChrootToolsetProperty property = toolset.getProperties().get(ChrootToolsetProperty.class);
+        return property != null ? property.getCompressionThreads() : 0;
+    }
+
+    /**
+     * Returns the build place for a run on the given working copy, a tmpfs
+     * if the toolset asks for one and it fits.
+     */
+    protected BuildPlace getBuildPlace(Node node, FilePath tarBall, Launcher launcher, TaskListener log) throws IOException, InterruptedException {
+        ChrootToolset toolset = ChrootToolset.getInstallationByName(getToolsetName(tarBall));
+        ChrootToolsetProperty property = toolset != null ? toolset.getProperties().get(ChrootToolsetProperty.class) : null;
+        if (property == null || property.getTmpfsSize() == 0) {
+            return BuildPlace.disk();
+        }
+        return BuildPlace.acquire(node, tarBall, property.getTmpfsSize(), getSudo(), launcher, log);
+    }
+
+    private String getCompressionCommand(FilePath tarBall) throws IOException, InterruptedException {
+        Compression compression = Compression.forImage(tarBall.getName());
+        FilePath program = compression.getProgram(tarBall, getCompressionThreads(tarBall));
+        return program != null ? program.getRemote() : compression.getCommand(0);
+    }
+
+    /**
+     * Converts a usable image of the toolset with another compression into
+     * the requested one. Returns false if there is no such image.
+     */
+    protected boolean convertImage(FilePath tarBall, ChrootToolset toolset, Launcher launcher, TaskListener log) throws IOException, InterruptedException {
+        String name = getToolsetName(tarBall);
+        for (Compression compression : Compression.values()) {
+            FilePath old = ChrootUtil.getImageFile(tarBall.getParent(), name, compression);
+            if (old.getName().equals(tarBall.getName()) || !isImageUsable(old, toolset)) {
+                continue;
+            }
+            log.getLogger().println(String.format("Converting %s to %s", old.getName(), tarBall.getName()));
+            FilePath tmp = tarBall.getParent().child(tarBall.getName() + ".tmp");
+            String convert = String.format("%s -d -c < %s | %s -c > %s",
+                    getCompressionCommand(old), ChrootUtil.shellQuote(old.getRemote()),
+                    getCompressionCommand(tarBall), ChrootUtil.shellQuote(tmp.getRemote()));
+            long start = System.currentTimeMillis();
+            int ret = launcher.launch().cmds("sh", "-c", convert).stdout(log).stderr(log.getLogger()).join();
+            if (ret != 0) {
+                tmp.delete();
+                return false;
+            }
+            tmp.renameTo(tarBall);
+            log.getLogger().println(String.format("Conversion took %d ms", System.currentTimeMillis() - start));
+            deleteImage(old, launcher, log);
+            commitImage(tarBall);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Logs how long creating and customizing the image took. Both are mostly
+     * spent downloading and installing packages, not packing the image.
+     */
+    protected void reportSetUp(FilePath tarBall, long create, long customize, TaskListener log) throws IOException, InterruptedException {
+        log.getLogger().println(String.format("Creating %s took %d ms, customizing it took %d ms (%d MB, %s with %d threads)",
+                tarBall.getName(), create, customize, tarBall.length() / (1024 * 1024),
+                Compression.forImage(tarBall.getName()).getDisplayName(), getCompressionThreads(tarBall)));
+    }
+
+    /**
+     * Runs a pbuilder action which may download packages with the node wide
+     * package cache and records the downloads of the toolset.
+     */
+    protected int launchWithPackageCache(Node node, FilePath tarBall, ArgumentListBuilder cmd, Launcher launcher, TaskListener log) throws IOException, InterruptedException {
+        return launchWithPackageCache(node, tarBall, cmd, null, launcher, log);
+    }
+
+    /**
+     * Like {@link #launchWithPackageCache(Node, FilePath, ArgumentListBuilder, Launcher, TaskListener)},
+     * but executes the given script inside the chroot and shows its output.
+     */
+    protected int launchWithPackageCache(Node node, FilePath tarBall, ArgumentListBuilder cmd, FilePath script, Launcher launcher, TaskListener log) throws IOException, InterruptedException {
+        FilePath cache = PackageCache.getCache(node, "apt");
+        Set<String> snapshot = PackageCache.snapshot(cache);
+        cmd.add("--aptcache").add(cache.getRemote());
+        Launcher.ProcStarter proc = launcher.launch().stderr(log.getLogger());
+        if (script != null) {
+            cmd.add("--").add(script);
+            proc.stdout(log);
+        }
+        long start = System.currentTimeMillis();
+        int ret = proc.cmds(cmd).join();
+        log.getLogger().println(String.format("%s took %d ms", getAction(cmd), System.currentTimeMillis() - start));
+        long quota = ChrootGlobalConfiguration.get().getPackageCacheQuota() * 1024 * 1024;
+        PackageCache.update(cache, snapshot, getToolsetName(tarBall), quota);
+        return ret;
+    }
+
+    private static String getAction(ArgumentListBuilder cmd) {
+        for (String arg : cmd.toList()) {
+            if (arg.startsWith("--")) {
+                return arg;
+            }
+        }
+        return cmd.toString();
+    }
+
+    /**
+     * Returns true if the node image exists, is intact and was created after
+     * the last modification of the toolset.
+     */
+    protected boolean isImageUsable(FilePath tarBall, ChrootToolset toolset) throws IOException, InterruptedException {
+        return tarBall.exists() && ImageStore.isIntact(getStore(tarBall), tarBall) && tarBall.lastModified() > toolset.getLastModified();
+    }
+
+    /**
+     * Returns the image store of the node the node image belongs to.
+     */
+    private static FilePath getStore(FilePath tarBall) {
+        return tarBall.getParent().getParent().child(ImageStore.STORE_DIR);
+    }
+
+    protected void deleteImage(FilePath tarBall, Launcher launcher, TaskListener log) throws IOException, InterruptedException {
+        ChrootUtil.deleteDigest(tarBall);
+        tarBall.delete();
     }
 
     private boolean doSetUp(FilePath tarBall, List<String> packages, ChrootToolsetProperty property, ToolInstallation tool, Node node, TaskListener log) throws IOException, InterruptedException {
@@ -87,7 +261,116 @@ public final class PBuilderWorker extends ChrootWorker {
             cmd.add(QuotedStringTokenizer.tokenize(property.getSetupArguments()));
         }
         //make pbuilder less verbose by ignoring stdout
-        return node.createLauncher(log).launch().cmds(cmd).stderr(log.getLogger()).join() == 0;
+        return launchWithPackageCache(node, tarBall, cmd, node.createLauncher(log), log) == 0;
+    }
+
+    /**
+     * Returns a script which adds the repositories, installs the packages and
+     * runs the setup command of the toolset, or null if there is nothing to
+     * do. The script stops at the first failing command.
+     */
+    static String getSetupScript(ChrootToolsetProperty property) {
+        StringBuilder script = new StringBuilder();
+        for (Repository repo : property.getRepos()) {
+            script.append(repo.setUpCommand());
+        }
+        List<String> packages = new ArrayList<String>(property.getPackagesList());
+        if (property.isCcache()) {
+            packages.add("ccache");
+        }
+        if (!property.getRepos().isEmpty() || !packages.isEmpty()) {
+            script.append("apt-get update\n");
+        }
+        if (!packages.isEmpty()) {
+            script.append("DEBIAN_FRONTEND=noninteractive apt-get -y install ")
+                    .append(StringUtils.join(packages, " ")).append("\n");
+        }
+        if (!Strings.isNullOrEmpty(property.getSetupCommand())) {
+            script.append(property.getSetupCommand()).append("\n");
+        }
+        if (script.length() == 0) {
+            return null;
+        }
+        // the downloaded packages would otherwise be saved into the image
+        script.append("apt-get clean\n");
+        return "#!/usr/bin/env bash\nset -e\nset -x verbose\n" + script;
+    }
+
+    /**
+     * Customizes a freshly created image in a single chroot session, so the
+     * image is only unpacked and packed once.
+     */
+    private boolean customize(FilePath tarBall, ChrootToolsetProperty property, Node node, TaskListener log) throws IOException, InterruptedException {
+        String commands = getSetupScript(property);
+        if (commands == null) {
+            return true;
+        }
+        FilePath script = tarBall.getParent().createTextTempFile("chroot", ".sh", commands);
+        ArgumentListBuilder cmd = defaultArgumentList(tarBall, "--execute")
+                .add("--save-after-exec");
+        int ret = launchWithPackageCache(node, tarBall, cmd, script, node.createLauncher(log), log);
+        script.delete();
+        if (ret != 0) {
+            log.fatalError("Could not customize the chroot environment.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the platform key of the images of the tool which are built on
+     * the node.
+     */
+    protected String getPlatform(ToolInstallation tool, Node node, TaskListener log) throws IOException, InterruptedException {
+        ChrootToolsetProperty property = tool.getProperties().get(ChrootToolsetProperty.class);
+        return Platform.of(node.createLauncher(log)).getKey(property != null ? property.getSetupArguments() : null);
+    }
+
+    /**
+     * Fetches a current image of the toolset for the platform from the image
+     * archive or from another node which published one. Returns false if
+     * there is none.
+     */
+    protected boolean fetchImage(ToolInstallation tool, ChrootToolset toolset, String platform, Node node, FilePath tarBall, TaskListener log) throws IOException, InterruptedException {
+        int threads = ChrootGlobalConfiguration.get().getPeerTransferThreads();
+        try {
+            if (ImageArchive.fetch(toolset, platform, tarBall, Math.max(1, threads), log)) {
+                return true;
+            }
+        } catch (IOException ex) {
+            log.error(String.format("Fetching %s from the image archive failed: %s", tarBall.getName(), ex.getMessage()));
+        }
+        if (threads == 0) {
+            return false;
+        }
+        for (ImageRegistry.Entry peer : ImageRegistry.getPeers(tool.getName(), platform)) {
+            Node peerNode = peer.getNode();
+            if (peer.getNodeName().equals(node.getNodeName()) || peerNode == null || peerNode.getRootPath() == null) {
+                continue;
+            }
+            FilePath image = getImage(peerNode.getRootPath(), tool);
+            try {
+                // the peer might have been replaced by an agent of another architecture
+                if (!platform.equals(getPlatform(tool, peerNode, log)) || !image.exists()
+                        || image.lastModified() <= toolset.getLastModified()
+                        || !peer.getDigest().equals(ChrootUtil.loadDigest(image))) {
+                    ImageRegistry.withdraw(tool.getName(), platform, peerNode);
+                    continue;
+                }
+                log.getLogger().println(String.format("Fetching %s from %s", image.getName(), peerNode.getDisplayName()));
+                if (ImageTransfer.fetch(image, tarBall, peer.getDigest(), threads, log)) {
+                    long updated = ChrootUtil.getLastUpdated(image);
+                    if (updated > 0) {
+                        ChrootUtil.getUpdatedFile(tarBall).write(Long.toString(updated), null);
+                    }
+                    return true;
+                }
+            } catch (IOException ex) {
+                log.error(String.format("Fetching %s from %s failed: %s", image.getName(), peerNode.getDisplayName(), ex.getMessage()));
+            }
+        }
+        log.getLogger().println(String.format("No other node has a current image of %s for %s, building it", tool.getName(), platform));
+        return false;
     }
 
     @Override
@@ -97,76 +380,124 @@ public final class PBuilderWorker extends ChrootWorker {
         FilePath tarBall;
         ChrootToolset toolset = ChrootToolset.getInstallationByName(tool.getName());
         ChrootToolsetProperty property = tool.getProperties().get(ChrootToolsetProperty.class);
-        tarBall = rootDir.child(getName()).child(tool.getName() + ".tgz");
+        tarBall = getImage(rootDir, tool);
+        String platform = getPlatform(tool, node, log);
 
         // run setup
-        if (!tarBall.exists() || !ChrootUtil.isFileIntact(tarBall) || tarBall.lastModified() <= toolset.getLastModified()) {
+        if (!isImageUsable(tarBall, toolset) && !convertImage(tarBall, toolset, node.createLauncher(log), log)) {
 
-            ChrootUtil.getDigestFile(tarBall).delete();
-            tarBall.delete();
+            deleteImage(tarBall, node.createLauncher(log), log);
 
             tarBall.getParent().mkdirs();
-            int ret;
 
+            if (fetchImage(tool, toolset, platform, node, tarBall, log)) {
+                ImageRegistry.publish(tool.getName(), platform, node, ChrootUtil.loadDigest(tarBall));
+                ImageArchive.archive(toolset, platform, tarBall, Long.MAX_VALUE);
+                return tarBall;
+            }
+
+            long start = System.currentTimeMillis();
             if (!doSetUp(tarBall, getDefaultPackages(), property, tool, node, log)) {
                 if (!doSetUp(tarBall, getFallbackPackages(), property, tool, node, log)) {
                     log.fatalError("Could not setup chroot environment");
                     return null;
                 }
             }
-            FilePath script;
-
-            // add repositories
-            if (property != null) {
-                addRepositories(tarBall, node.createLauncher(log), log, property.getRepos());
+            long create = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+            // add repositories, packages and run the setup command in one session
+            if (property != null && !customize(tarBall, property, node, log)) {
+                return null;
             }
+            long customize = System.currentTimeMillis() - start;
+            commitImage(tarBall);
+            ChrootUtil.markUpdated(tarBall);
+            reportSetUp(tarBall, create, customize, log);
+            ImageRegistry.publish(tool.getName(), platform, node, ChrootUtil.loadDigest(tarBall));
+            ImageArchive.archive(toolset, platform, tarBall, Long.MAX_VALUE);
+        } else if (!ImageRegistry.isPublished(tool.getName(), platform, node)) {
+            ImageRegistry.publish(tool.getName(), platform, node, ChrootUtil.loadDigest(tarBall));
+            ImageArchive.archive(toolset, platform, tarBall, Long.MAX_VALUE);
+        }
+        return tarBall;
+    }
 
-            // add additional packages
-            if (property != null && !property.getPackagesList().isEmpty()) {
-                ArgumentListBuilder cmd = defaultArgumentList(tarBall, "--update")
-                        .add("--extrapackages")
-                        .add(StringUtils.join(property.getPackagesList(), " "));
-                ret = node.createLauncher(log).launch().cmds(cmd).stderr(log.getLogger()).join();
-                if (ret != 0) {
-                    log.fatalError("Could not install additional packages.");
-                    return null;
-                }
-            }
+    @Override
+    public FilePath getNodeImage(ToolInstallation tool, Node node) {
+        return getImage(node.getRootPath(), tool);
+    }
 
-            // run additional setup command
-            if (property != null && !property.getSetupCommand().isEmpty()) {
-                String shebang = "#!/usr/bin/env bash\n";
-                String command = shebang + "set -e\nset -x verbose\n" + property.getSetupCommand();
-                script = rootDir.createTextTempFile("chroot", ".sh", command);
-                ArgumentListBuilder cmd = defaultArgumentList(tarBall, "--execute")
-                        .add("--save-after-exec")
-                        .add("--").add(script);
-                ret = node.createLauncher(log).launch().cmds(cmd).stdout(log).stderr(log.getLogger()).join();
-                script.delete();
-                if (ret != 0) {
-                    log.fatalError("Post-setup command failed.");
-                    return null;
-                }
-            }
+    @Override
+    public boolean isRefreshable() {
+        return true;
+    }
+
+    /**
+     * Updates a copy of the node image with low CPU and IO priority and
+     * replaces the node image with it afterwards.
+     */
+    @Override
+    public boolean refreshImage(ToolInstallation tool, Node node, TaskListener log) throws IOException, InterruptedException {
+        ChrootToolset toolset = ChrootToolset.getInstallationByName(tool.getName());
+        FilePath image = getNodeImage(tool, node);
+        if (toolset == null || !isImageUsable(image, toolset)) {
+            return false;
         }
-        ChrootUtil.saveDigest(tarBall);
-        return tarBall;
+        Launcher launcher = node.createLauncher(log);
+        FilePath store = ImageStore.getStore(node);
+        // keep the file name, it tells the toolset and the compression
+        FilePath copy = image.getParent().child(REFRESH_DIR).child(image.getName());
+        deleteImage(copy, launcher, log);
+        ImageStore.checkout(store, image, copy);
+        ArgumentListBuilder cmd = new ArgumentListBuilder("nice", "-n", "19", "ionice", "-c", "3")
+                .add(defaultArgumentList(copy, "--update").toList());
+        if (launchWithPackageCache(node, copy, cmd, launcher, log) != 0) {
+            deleteImage(copy, launcher, log);
+            ImageStore.prune(store);
+            return false;
+        }
+        commitImage(copy);
+        ImageStore.replace(store, image, copy);
+        ChrootUtil.markUpdated(image);
+        String platform = getPlatform(tool, node, log);
+        ImageRegistry.publish(tool.getName(), platform, node, ChrootUtil.loadDigest(image));
+        // one new version per refresh interval is enough
+        ImageArchive.archive(toolset, platform, image, TimeUnit.HOURS.toMillis(ChrootGlobalConfiguration.get().getImageRefreshInterval()));
+        ImageStore.prune(store);
+        return true;
     }
 
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath tarBall, String commands, boolean runAsRoot) throws IOException, InterruptedException {
-        String userName = super.getUserName(launcher);
-        String groupName = super.getGroupName(launcher, userName);
+        Identity identity = getIdentity(launcher);
+        String userName = identity.getUserName();
+        String groupName = identity.getGroupName();
         String userHome = build.getWorkspace().getRemote();
-        int id = super.getUID(launcher, userName);
-        int gid = super.getGID(launcher, userName);
+        int id = identity.getUID();
+        int gid = identity.getGID();
         EnvVars environment = build.getEnvironment(listener);
-        commands = "cd " + build.getWorkspace().getRemote() + "\n" + commands + "\n";
-        commands = "set -e\nset -x verbose\n" + commands;
-        for (Map.Entry<String, String> entry : environment.entrySet()) {
-            commands = String.format("if [ -z ${%s} ]; then export %s=\"%s\"; fi;\n", entry.getKey(), entry.getKey(), entry.getValue()) + commands;
+        String exports = ChrootGlobalConfiguration.get().getEnvironmentFile().render(environment);
+        FilePath envFile = build.getWorkspace().createTextTempFile("chroot", ".env", exports);
+        ChrootToolset toolset = ChrootToolset.getInstallationByName(getToolsetName(tarBall));
+        ChrootToolsetProperty property = toolset != null ? toolset.getProperties().get(ChrootToolsetProperty.class) : null;
+        FilePath ccache = null;
+        FilePath statsBefore = null;
+        FilePath statsAfter = null;
+        String ccacheSetup = "";
+        if (property != null && property.isCcache()) {
+            ccache = CompilerCache.getCache(build.getBuiltOn(), toolset.getName());
+            ccache.mkdirs();
+            statsBefore = build.getWorkspace().createTextTempFile("ccache", ".stats", "");
+            statsAfter = build.getWorkspace().createTextTempFile("ccache", ".stats", "");
+            ccacheSetup = CompilerCache.getSetup(ccache, build.getWorkspace(), property.getCcacheSize(), statsBefore, statsAfter);
         }
-        FilePath script = build.getWorkspace().createTextTempFile("chroot", ".sh", commands);
+        StringBuilder script_content = new StringBuilder()
+                .append(". ").append(envFile.getRemote()).append("\n")
+                .append(ccacheSetup)
+                .append("set -e\nset -x verbose\n")
+                .append("cd ").append(build.getWorkspace().getRemote()).append("\n")
+                .append(commands).append("\n");
+        FilePath script = build.getWorkspace().createTextTempFile("chroot", ".sh", script_content.toString());
         String create_group = String.format("groupadd -g %d %s | :\n", gid, groupName);
         String create_user = String.format("useradd %s -u %d -g %d -m | : \n", userName, id, gid);
         String run_script;
@@ -175,32 +506,103 @@ public final class PBuilderWorker extends ChrootWorker {
             sudoUser = "root";
         }
 
-        run_script = String.format("chmod u+x %s\n ret=1; sudo -i -u %s bash -- %s; if [ $? -eq 0 ]; then ret=0; fi;cd %s; chown %s:%s ./ -R; exit $ret\n", script.getRemote(), sudoUser, script.getRemote(), build.getWorkspace().getRemote(), userName, groupName);
+        run_script = String.format("chmod u+x %s\n ret=1; sudo -i -u %s bash -- %s; if [ $? -eq 0 ]; then ret=0; fi;\n", script.getRemote(), sudoUser, script.getRemote());
+        if (runAsRoot) {
+            // only files created or changed by the build need a new owner
+            String dirs = build.getWorkspace().getRemote() + (ccache != null ? " " + ccache.getRemote() : "");
+            run_script = String.format("marker=$(mktemp)\n%s", run_script) + getOwnershipFixup(dirs, tarBall, userName, groupName);
+        }
+        run_script += "exit $ret\n";
 
         String shebang = "#!/usr/bin/env bash\n";
         String setup_command = shebang + create_group + create_user + run_script;
         FilePath setup_script = build.getWorkspace().createTextTempFile("chroot", ".sh", setup_command);
-        ArgumentListBuilder b = new ArgumentListBuilder().add("sudo").add(getTool()).add("--execute")
-                .add("--bindmounts").add(userHome)
-                .add("--basetgz").add(tarBall.getRemote())
+        BuildPlace place = getBuildPlace(build.getBuiltOn(), tarBall, launcher, listener);
+        ArgumentListBuilder b = new ArgumentListBuilder().add(getSudo()).add(getTool()).add("--execute")
+                .add("--bindmounts").add(userHome);
+        if (ccache != null) {
+            b.add("--bindmounts").add(ccache.getRemote());
+        }
+        b.add(imageArguments(tarBall))
+                .add(place.getArguments())
                 .add("--").add(setup_script);
-        int exitCode = launcher.launch().cmds(b).envs(environment).stdout(listener).stderr(listener.getLogger()).join();
+        int exitCode;
+        try {
+            exitCode = launcher.launch().cmds(b).envs(environment).stdout(listener).stderr(listener.getLogger()).join();
+        } finally {
+            place.release(listener);
+        }
         script.delete();
+        envFile.delete();
         setup_script.delete();
+        if (ccache != null) {
+            recordCompilerCache(build, toolset.getName(), statsBefore, statsAfter);
+        }
         return exitCode == 0;
     }
 
+    /**
+     * Adds the ccache hits and misses between the two statistics to the build
+     * and the toolset. Other builds of the toolset on the node which run at
+     * the same time are counted as well.
+     */
+    private static void recordCompilerCache(AbstractBuild<?, ?> build, String toolset, FilePath before, FilePath after) throws IOException, InterruptedException {
+        long[] start = CompilerCache.parseStats(before.readToString());
+        long[] end = CompilerCache.parseStats(after.readToString());
+        before.delete();
+        after.delete();
+        if (start != null && end != null) {
+            long hits = Math.max(0, end[0] - start[0]);
+            long misses = Math.max(0, end[1] - start[1]);
+            ChrootBuildAction.of(build).addCompilerCacheStats(hits, misses);
+            CompilerCache.getStatistics(toolset).record(hits, misses);
+        }
+    }
+
+    /**
+     * Returns shell commands which give all files in the workspace which
+     * changed since $marker was created back to the user, and report how
+     * long that took. The working copy of the image is skipped, it belongs to
+     * root and the chroot tool changes the ctime of its files.
+     */
+    static String getOwnershipFixup(FilePath workspace, FilePath image, String userName, String groupName) {
+        return getOwnershipFixup(workspace.getRemote(), image, userName, groupName);
+    }
+
+    /**
+     * Like {@link #getOwnershipFixup(FilePath, FilePath, String, String)} for
+     * several space separated directories.
+     */
+    static String getOwnershipFixup(String dirs, FilePath image, String userName, String groupName) {
+        return String.format("start=$(date +%%s%%N)\n"
+                + "find %s -path %s -prune -o -cnewer \"$marker\" \\( ! -user %s -o ! -group %s \\) -exec chown -h %s:%s {} +\n"
+                + "echo \"Fixing file ownership took $(( ($(date +%%s%%N) - start) / 1000000 )) ms\"\n"
+                + "rm -f \"$marker\"\n",
+                dirs, image.getRemote(), userName, groupName, userName, groupName);
+    }
+
     @Override
     public boolean installPackages(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath tarBall, List<String> packages, boolean forceInstall) throws IOException, InterruptedException {
-        ArgumentListBuilder b = new ArgumentListBuilder().add("sudo").add(getTool())
-                .add("--update")
-                .add("--basetgz").add(tarBall.getRemote())
+        ArgumentListBuilder b = defaultArgumentList(tarBall, "--update")
                 .add("--extrapackages")
                 .add(StringUtils.join(packages, " "));
         if (forceInstall) {
             b = b.add("--allow-untrusted");
         }
-        return launcher.launch().cmds(b).stderr(listener.getLogger()).join() == 0;
+        return launchInBuildPlace(build.getBuiltOn(), tarBall, b, launcher, listener) == 0;
+    }
+
+    /**
+     * Runs a pbuilder action on a working copy with the package cache in
+     * the build place of the toolset.
+     */
+    private int launchInBuildPlace(Node node, FilePath tarBall, ArgumentListBuilder cmd, Launcher launcher, TaskListener log) throws IOException, InterruptedException {
+        BuildPlace place = getBuildPlace(node, tarBall, launcher, log);
+        try {
+            return launchWithPackageCache(node, tarBall, cmd.add(place.getArguments()), launcher, log);
+        } finally {
+            place.release(log);
+        }
     }
 
     public List<String> getDefaultPackages() {
@@ -249,21 +651,26 @@ public final class PBuilderWorker extends ChrootWorker {
 
     @Override
     public boolean updateRepositories(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath tarBall) throws IOException, InterruptedException {
-        ArgumentListBuilder b = new ArgumentListBuilder().add("sudo").add(getTool())
-                .add("--update")
-                .add("--basetgz").add(tarBall.getRemote());
-        return launcher.launch().cmds(b).stderr(listener.getLogger()).join() == 0;
+        ArgumentListBuilder b = defaultArgumentList(tarBall, "--update");
+        return launchInBuildPlace(build.getBuiltOn(), tarBall, b, launcher, listener) == 0;
+    }
+
+    /**
+     * Returns a string which the help output of a working tool contains.
+     */
+    protected String getHealthToken() {
+        return "--basetgz";
     }
 
     @Override
     public boolean healthCheck(Launcher launcher) {
         ByteArrayOutputStream stderr = new ByteArrayOutputStream();
         ByteArrayOutputStream stdout = new ByteArrayOutputStream();
-        ArgumentListBuilder b = new ArgumentListBuilder().add("sudo").add(getTool())
+        ArgumentListBuilder b = new ArgumentListBuilder().add(getSudo()).add(getTool())
                 .add("--help");
         try {
             launcher.launch().cmds(b).stderr(stderr).stdout(stdout).join();
-            if (stdout.toString().contains("--basetgz")) {
+            if (stdout.toString().contains(getHealthToken())) {
                 return true;
             }
         } catch (IOException ex) {
@@ -0,0 +1,202 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.provisioning;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.RootAction;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.HttpResponses;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.chroot.ChrootGlobalConfiguration;
+import org.jenkinsci.plugins.chroot.tools.ChrootToolset;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Creates the images of selected toolsets on all online nodes in parallel,
+ * so that builds find them ready instead of creating them on demand.
+ *
+ * The number of images created at the same time is limited globally and
+ * per node.
+ *
+ * @author rmohr
+ */
+@Extension
+@ExportedBean
+public class ImageProvisioner implements RootAction {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory());
+    private final List<ProvisioningTask> tasks = new ArrayList<ProvisioningTask>();
+    private final Map<String, Semaphore> nodeLimits = new HashMap<String, Semaphore>();
+    private Semaphore globalLimit;
+    private int globalPermits;
+    private int nodePermits;
+
+    public static ImageProvisioner get() {
+        return Jenkins.getInstance().getExtensionList(RootAction.class).get(ImageProvisioner.class);
+    }
+
+    public String getIconFileName() {
+        return Jenkins.getInstance().hasPermission(Jenkins.ADMINISTER) ? "package.png" : null;
+    }
+
+    public String getDisplayName() {
+        return "Chroot Images";
+    }
+
+    public String getUrlName() {
+        return "chroot-provisioning";
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    public ChrootToolset[] getToolsets() {
+        return ChrootToolset.list();
+    }
+
+    /**
+     * Returns all tasks of the current and of past runs, newest first.
+     */
+    @Exported(inline = true)
+    public synchronized List<ProvisioningTask> getTasks() {
+        List<ProvisioningTask> result = new ArrayList<ProvisioningTask>(tasks);
+        Collections.reverse(result);
+        return result;
+    }
+
+    @Exported
+    public synchronized boolean isRunning() {
+        for (ProvisioningTask task : tasks) {
+            if (!task.isDone()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts provisioning of the given toolsets, or of all toolsets if none
+     * is given, on all online nodes. Returns the started tasks.
+     */
+    public synchronized List<ProvisioningTask> provision(List<String> toolsets) {
+        updateLimits();
+        // forget finished tasks of earlier runs
+        for (Iterator<ProvisioningTask> it = tasks.iterator(); it.hasNext();) {
+            if (it.next().isDone()) {
+                it.remove();
+            }
+        }
+        List<ProvisioningTask> started = new ArrayList<ProvisioningTask>();
+        List<Node> nodes = new ArrayList<Node>();
+        nodes.add(Jenkins.getInstance());
+        nodes.addAll(Jenkins.getInstance().getNodes());
+        for (ChrootToolset toolset : ChrootToolset.list()) {
+            if (!toolsets.isEmpty() && !toolsets.contains(toolset.getName())) {
+                continue;
+            }
+            for (Node node : nodes) {
+                Computer computer = node.toComputer();
+                if (computer == null || computer.isOffline() || isActive(toolset.getName(), node.getNodeName())) {
+                    continue;
+                }
+                ProvisioningTask task = new ProvisioningTask(toolset.getName(), node.getNodeName(),
+                        globalLimit, getNodeLimit(node.getNodeName()));
+                tasks.add(task);
+                started.add(task);
+                executor.submit(task);
+            }
+        }
+        return started;
+    }
+
+    private boolean isActive(String toolset, String node) {
+        for (ProvisioningTask task : tasks) {
+            if (!task.isDone() && task.getToolset().equals(toolset) && task.getNode().equals(node)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void updateLimits() {
+        ChrootGlobalConfiguration config = ChrootGlobalConfiguration.get();
+        // running tasks keep the semaphores they were created with
+        if (globalLimit == null || globalPermits != config.getProvisioningConcurrency()) {
+            globalPermits = config.getProvisioningConcurrency();
+            globalLimit = new Semaphore(globalPermits, true);
+        }
+        if (nodePermits != config.getProvisioningConcurrencyPerNode()) {
+            nodePermits = config.getProvisioningConcurrencyPerNode();
+            nodeLimits.clear();
+        }
+    }
+
+    private Semaphore getNodeLimit(String node) {
+        Semaphore limit = nodeLimits.get(node);
+        if (limit == null) {
+            limit = new Semaphore(nodePermits, true);
+            nodeLimits.put(node, limit);
+        }
+        return limit;
+    }
+
+    public HttpResponse doProvision(StaplerRequest req) {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        if (!"POST".equals(req.getMethod())) {
+            return HttpResponses.error(405, "POST required");
+        }
+        String[] selected = req.getParameterValues("toolset");
+        provision(selected == null ? new ArrayList<String>() : Arrays.asList(selected));
+        return HttpResponses.forwardToPreviousPage();
+    }
+
+    public synchronized HttpResponse doLog(@QueryParameter String toolset, @QueryParameter String node) {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        for (int i = tasks.size() - 1; i >= 0; i--) {
+            ProvisioningTask task = tasks.get(i);
+            if (task.getToolset().equals(toolset) && task.getNode().equals(node)) {
+                return HttpResponses.plainText(task.getLog());
+            }
+        }
+        return HttpResponses.notFound();
+    }
+}
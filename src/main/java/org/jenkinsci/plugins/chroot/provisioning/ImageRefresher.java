@@ -0,0 +1,110 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.provisioning;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.chroot.ChrootGlobalConfiguration;
+import org.jenkinsci.plugins.chroot.extensions.ChrootWorker;
+import org.jenkinsci.plugins.chroot.tools.ChrootToolset;
+import org.jenkinsci.plugins.chroot.util.ChrootUtil;
+
+/**
+ * Updates node images which are older than the configured refresh interval,
+ * so that builds can skip the update of their working copy. Also lets every
+ * worker remove what deleted or changed toolsets left on the nodes.
+ *
+ * @author rmohr
+ */
+@Extension
+public class ImageRefresher extends AsyncPeriodicWork {
+
+    public ImageRefresher() {
+        super("Chroot image refresh");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.HOURS.toMillis(1);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        List<Node> nodes = new ArrayList<Node>();
+        nodes.add(Jenkins.getInstance());
+        nodes.addAll(Jenkins.getInstance().getNodes());
+        for (ChrootWorker worker : ChrootWorker.all()) {
+            for (Node node : nodes) {
+                Computer computer = node.toComputer();
+                if (computer == null || computer.isOffline() || node.getRootPath() == null) {
+                    continue;
+                }
+                try {
+                    worker.collectGarbage(node, listener);
+                } catch (IOException ex) {
+                    ex.printStackTrace(listener.error("Collecting garbage of %s on %s failed", worker.getName(), node.getDisplayName()));
+                }
+            }
+        }
+        int interval = ChrootGlobalConfiguration.get().getImageRefreshInterval();
+        if (interval == 0) {
+            return;
+        }
+        long threshold = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(interval);
+        for (ChrootToolset toolset : ChrootToolset.list()) {
+            ChrootWorker worker = toolset.getChrootWorker();
+            if (worker == null || !worker.isRefreshable()) {
+                continue;
+            }
+            for (Node node : nodes) {
+                Computer computer = node.toComputer();
+                if (computer == null || computer.isOffline() || node.getRootPath() == null) {
+                    continue;
+                }
+                FilePath image = worker.getNodeImage(toolset, node);
+                if (image == null || !image.exists() || ChrootUtil.getLastUpdated(image) > threshold) {
+                    continue;
+                }
+                listener.getLogger().println(String.format("Refreshing %s on %s", toolset.getName(), node.getDisplayName()));
+                long start = System.currentTimeMillis();
+                try {
+                    boolean refreshed = worker.refreshImage(toolset, node, listener);
+                    listener.getLogger().println(String.format("%s after %d ms", refreshed ? "Refreshed" : "Skipped",
+                            System.currentTimeMillis() - start));
+                } catch (IOException ex) {
+                    ex.printStackTrace(listener.error("Refreshing %s on %s failed", toolset.getName(), node.getDisplayName()));
+                }
+            }
+        }
+    }
+}
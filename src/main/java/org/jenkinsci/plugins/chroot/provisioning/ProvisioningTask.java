@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.provisioning;
+
+import hudson.model.Node;
+import hudson.tools.InstallSourceProperty;
+import hudson.tools.ToolInstaller;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.chroot.tools.ChrootCreator;
+import org.jenkinsci.plugins.chroot.tools.ChrootToolset;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Provisioning of one toolset image on one node.
+ *
+ * @author rmohr
+ */
+@ExportedBean(defaultVisibility = 2)
+public final class ProvisioningTask implements Runnable {
+
+    private static final Logger logger = Logger.getLogger("jenkins.plugins.chroot.provisioning.ProvisioningTask");
+
+    public enum State {
+
+        QUEUED, RUNNING, SUCCESS, FAILURE, NOT_APPLICABLE
+    }
+    private final String toolset;
+    private final String node;
+    private final Semaphore global;
+    private final Semaphore perNode;
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private volatile State state = State.QUEUED;
+    private final long queued = System.currentTimeMillis();
+    private volatile long started;
+    private volatile long finished;
+    private volatile String message = "";
+
+    ProvisioningTask(String toolset, String node, Semaphore global, Semaphore perNode) {
+        this.toolset = toolset;
+        this.node = node;
+        this.global = global;
+        this.perNode = perNode;
+    }
+
+    @Exported
+    public String getToolset() {
+        return toolset;
+    }
+
+    @Exported
+    public String getNode() {
+        return node;
+    }
+
+    @Exported
+    public State getState() {
+        return state;
+    }
+
+    public boolean isDone() {
+        return state != State.QUEUED && state != State.RUNNING;
+    }
+
+    @Exported
+    public long getQueued() {
+        return queued;
+    }
+
+    /**
+     * Time the task has been waiting or running so far, in milliseconds.
+     */
+    @Exported
+    public long getDuration() {
+        if (started == 0) {
+            return System.currentTimeMillis() - queued;
+        }
+        return (finished == 0 ? System.currentTimeMillis() : finished) - started;
+    }
+
+    @Exported
+    public String getMessage() {
+        return message;
+    }
+
+    public String getLog() {
+        return log.toString();
+    }
+
+    public void run() {
+        try {
+            // a task waiting for a busy node must not hold a global slot
+            perNode.acquire();
+            try {
+                global.acquire();
+                try {
+                    provision();
+                } finally {
+                    global.release();
+                }
+            } finally {
+                perNode.release();
+            }
+        } catch (InterruptedException ex) {
+            finish(State.FAILURE, "interrupted");
+        }
+    }
+
+    private void provision() throws InterruptedException {
+        started = System.currentTimeMillis();
+        state = State.RUNNING;
+        ChrootToolset tool = ChrootToolset.getInstallationByName(toolset);
+        Node n = node.length() == 0 ? Jenkins.getInstance() : Jenkins.getInstance().getNode(node);
+        if (tool == null || n == null || n.toComputer() == null || n.toComputer().isOffline()) {
+            finish(State.FAILURE, "toolset or node is not available anymore");
+            return;
+        }
+        if (!appliesTo(tool, n)) {
+            finish(State.NOT_APPLICABLE, "the toolset can not be installed on this node");
+            return;
+        }
+        StreamTaskListener listener = new StreamTaskListener(log);
+        try {
+            String home = tool.forNode(n, listener).getHome();
+            finish(State.SUCCESS, home);
+        } catch (InterruptedException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Provisioning of " + toolset + " on " + n.getDisplayName() + " failed", ex);
+            ex.printStackTrace(listener.getLogger());
+            finish(State.FAILURE, ex.getMessage() == null ? ex.toString() : ex.getMessage());
+        } finally {
+            listener.getLogger().flush();
+        }
+    }
+
+    private static boolean appliesTo(ChrootToolset tool, Node node) {
+        InstallSourceProperty installers = tool.getProperties().get(InstallSourceProperty.class);
+        if (installers == null) {
+            return false;
+        }
+        for (ToolInstaller installer : installers.installers) {
+            if (installer instanceof ChrootCreator && installer.appliesTo(node)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void finish(State state, String message) {
+        this.finished = System.currentTimeMillis();
+        if (started == 0) {
+            started = finished;
+        }
+        this.message = message;
+        this.state = state;
+    }
+}
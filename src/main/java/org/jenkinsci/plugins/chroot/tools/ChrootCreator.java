@@ -34,6 +34,8 @@ import hudson.tools.ToolInstallerDescriptor;
 import java.io.IOException;
 import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.jenkinsci.plugins.chroot.extensions.ChrootWorker;
+import org.jenkinsci.plugins.chroot.util.HealthCache;
+import org.jenkinsci.plugins.chroot.util.NodeLimiter;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 /**
@@ -50,7 +52,13 @@ public class ChrootCreator extends ToolInstaller {
     @Override
     public FilePath performInstallation(ToolInstallation tool, Node node, TaskListener log) throws IOException, InterruptedException {
         ChrootToolset toolset = ChrootToolset.getInstallationByName(tool.getName());
-        FilePath path = ChrootWorker.getByName(toolset.getToolName()).setUp(tool, node, log);
+        FilePath path;
+        NodeLimiter.Permit permit = NodeLimiter.acquire(node, log);
+        try {
+            path = ChrootWorker.getByName(toolset.getToolName()).setUp(tool, node, log);
+        } finally {
+            permit.release();
+        }
         if (path == null) {
             throw new IOException("Installation of tool " + tool.getName() + " on node " + node.getDisplayName() + " failed.");
         }
@@ -88,7 +96,7 @@ public class ChrootCreator extends ToolInstaller {
         ChrootWorker worker = toolset.getChrootWorker();
 
         // check if jenkins can run the chroot
-        if (!worker.healthCheck(launcher)) {
+        if (!HealthCache.isHealthy(worker, node)) {
             return false;
         }
         return true;
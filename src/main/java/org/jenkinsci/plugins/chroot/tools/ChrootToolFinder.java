@@ -23,15 +23,29 @@
  */
 package org.jenkinsci.plugins.chroot.tools;
 
+import hudson.Extension;
 import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
 import hudson.tools.ToolProperty;
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import jenkins.model.Jenkins;
 
 /**
@@ -39,6 +53,10 @@ import jenkins.model.Jenkins;
  * @author roman
  */
 public class ChrootToolFinder {
+
+    private static final Logger logger = Logger.getLogger("jenkins.plugins.chroot.tools.ChrootToolFinder");
+    private static final Map<String, Map<String, String>> nodeTools = new HashMap<String, Map<String, String>>();
+
     public static List<ChrootToolset> configure() throws IOException, InterruptedException {
         // Get the installations
         List<ChrootToolset> installations = getInstallations();
@@ -57,6 +75,12 @@ public class ChrootToolFinder {
         debian.add("apt-get");
         debian.add("pbuilder");
 
+        List<String> cowbuilder = new LinkedList<String>();
+        cowbuilder.add("debian-derivative");
+        cowbuilder.add("cowbuilder");
+        cowbuilder.add("apt-get");
+        cowbuilder.add("cowbuilder");
+
         List<String> fedora = new LinkedList<String>();
         fedora.add("fedora-derivative");
         fedora.add("mock");
@@ -64,6 +88,7 @@ public class ChrootToolFinder {
         fedora.add("mock");
 
         candidates.add(debian);
+        candidates.add(cowbuilder);
         candidates.add(fedora);
         return candidates;
     }     
@@ -71,26 +96,123 @@ public class ChrootToolFinder {
     private static List<ChrootToolset> getInstallations() throws InterruptedException {
         
         LinkedList<List<String>> candidates = getCandidates();
+        Map<String, String> found = new FindTools(getToolNames(candidates)).call();
         
         List<ChrootToolset> installations = new LinkedList<ChrootToolset>();
         for (List<String> properties : candidates) {
-            try {
-                List<String> command = new ArrayList<String>();
-                command.add("command");
-                command.add("-v");
-                command.add(properties.get(1));
-                Process proc = Runtime.getRuntime().exec(command.toArray(new String[0]));
-                proc.waitFor();
-                BufferedReader read = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-                String location;
-                if ((location = read.readLine()) != null) {
-                    installations.add(new ChrootToolset(properties.get(0) + "-" + properties.get(1), "", properties.get(1), Collections.<ToolProperty<?>>emptyList()));
-                }
-            } catch (IOException ex) {
-                continue;
+            if (found.containsKey(properties.get(1))) {
+                installations.add(new ChrootToolset(properties.get(0) + "-" + properties.get(1), "", properties.get(1), Collections.<ToolProperty<?>>emptyList()));
             }
         }
 
         return installations;
-    }    
+    }
+
+    private static List<String> getToolNames(List<List<String>> candidates) {
+        List<String> names = new ArrayList<String>();
+        for (List<String> properties : candidates) {
+            names.add(properties.get(1));
+        }
+        return names;
+    }
+
+    /**
+     * Configures the toolsets in the background, if none are configured yet.
+     */
+    public static Future<?> configureAsync() {
+        return Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                try {
+                    if (ChrootToolset.isEmpty()) {
+                        configure();
+                    }
+                } catch (Exception ex) {
+                    logger.log(Level.WARNING, "Could not detect chroot tools", ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the chroot tools found on the node when it connected, mapped to
+     * their location, or null if the node was not scanned yet.
+     */
+    public static Map<String, String> getTools(Node node) {
+        synchronized (nodeTools) {
+            return nodeTools.get(node.getNodeName());
+        }
+    }
+
+    /**
+     * Looks up tools in the PATH of the node and in the usual locations of
+     * system tools, without forking any processes.
+     */
+    static final class FindTools implements Callable<Map<String, String>, RuntimeException> {
+
+        private static final String[] SYSTEM_PATH = {"/usr/local/sbin", "/usr/local/bin", "/usr/sbin", "/usr/bin", "/sbin", "/bin"};
+        private final List<String> names;
+
+        FindTools(List<String> names) {
+            this.names = names;
+        }
+
+        public Map<String, String> call() {
+            Set<String> dirs = new LinkedHashSet<String>();
+            String path = System.getenv("PATH");
+            if (path != null) {
+                dirs.addAll(Arrays.asList(path.split(File.pathSeparator)));
+            }
+            dirs.addAll(Arrays.asList(SYSTEM_PATH));
+            Map<String, String> found = new TreeMap<String, String>();
+            for (String name : names) {
+                for (String dir : dirs) {
+                    File file = new File(dir, name);
+                    if (dir.length() > 0 && file.isFile() && file.canExecute()) {
+                        found.put(name, file.getAbsolutePath());
+                        break;
+                    }
+                }
+            }
+            return found;
+        }
+    }
+
+    /**
+     * Scans every node for chroot tools when it connects.
+     */
+    @Extension
+    public static final class Discovery extends ComputerListener {
+
+        @Override
+        public void onOnline(final Computer c, final TaskListener listener) {
+            final Node node = c.getNode();
+            final VirtualChannel channel = c.getChannel();
+            if (node == null || channel == null) {
+                return;
+            }
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    try {
+                        Map<String, String> tools = channel.call(new FindTools(getToolNames(getCandidates())));
+                        synchronized (nodeTools) {
+                            nodeTools.put(node.getNodeName(), tools);
+                        }
+                        listener.getLogger().println("Chroot tools: " + (tools.isEmpty() ? "none" : tools.values()));
+                    } catch (Exception ex) {
+                        logger.log(Level.WARNING, "Could not detect chroot tools on " + node.getDisplayName(), ex);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onOffline(Computer c) {
+            Node node = c.getNode();
+            if (node != null) {
+                synchronized (nodeTools) {
+                    nodeTools.remove(node.getNodeName());
+                }
+            }
+        }
+    }
 }
@@ -28,6 +28,7 @@ import hudson.CopyOnWrite;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
+import hudson.Util;
 import hudson.model.EnvironmentSpecific;
 import hudson.model.Node;
 import hudson.model.TaskListener;
@@ -40,13 +41,16 @@ import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import javax.servlet.ServletException;
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.jenkinsci.plugins.chroot.extensions.ChrootWorker;
+import org.jenkinsci.plugins.chroot.util.CompilerCache;
+import org.jenkinsci.plugins.chroot.util.PackageCache;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
@@ -79,6 +83,35 @@ public final class ChrootToolset extends ToolInstallation implements Environment
         this.lastModified = lastModified;
     }
 
+    /**
+     * Returns a digest of everything which goes into an image of the toolset.
+     * The compression is not part of it, it is part of the image name.
+     */
+    public String getFingerprint() {
+        StringBuilder content = new StringBuilder(Strings.nullToEmpty(getToolName()));
+        ChrootToolsetProperty property = getProperties().get(ChrootToolsetProperty.class);
+        if (property != null) {
+            content.append('\0').append(property.getPackages())
+                    .append('\0').append(Strings.nullToEmpty(property.getSetupCommand()))
+                    .append('\0').append(Strings.nullToEmpty(property.getSetupArguments()))
+                    .append('\0').append(property.isCcache());
+            for (Repository repo : property.getRepos()) {
+                content.append('\0').append(repo.getName())
+                        .append(' ').append(repo.getUri())
+                        .append(' ').append(Strings.nullToEmpty(repo.getKeyfile()));
+            }
+        }
+        return Util.getDigestOf(content.toString());
+    }
+
+    public PackageCache.Statistics getPackageCacheStatistics() {
+        return PackageCache.getStatistics(getName());
+    }
+
+    public CompilerCache.Statistics getCompilerCacheStatistics() {
+        return CompilerCache.getStatistics(getName());
+    }
+
     public ChrootWorker getChrootWorker() {
         return ChrootWorker.getByName(this.getToolName());
     }
@@ -99,12 +132,7 @@ public final class ChrootToolset extends ToolInstallation implements Environment
         if (name == null) {
             return null;
         }
-        for (ChrootToolset installation : list()) {
-            if (name.equals(installation.getName())) {
-                return installation;
-            }
-        }
-        return null;
+        return ToolInstallation.all().get(DescriptorImpl.class).getInstallation(name);
     }
 
     @Override
@@ -151,6 +179,7 @@ public final class ChrootToolset extends ToolInstallation implements Environment
 
         @CopyOnWrite
         private volatile ChrootToolset[] installations;
+        private transient volatile Map<String, ChrootToolset> byName;
 
         public ListBoxModel doFillToolNameItems() {
             ListBoxModel items = new ListBoxModel();
@@ -163,6 +192,19 @@ public final class ChrootToolset extends ToolInstallation implements Environment
         public DescriptorImpl() {
             this.installations = new ChrootToolset[0];
             load();
+            this.byName = index(this.installations);
+        }
+
+        static Map<String, ChrootToolset> index(ChrootToolset[] installations) {
+            Map<String, ChrootToolset> index = new HashMap<String, ChrootToolset>();
+            for (ChrootToolset tool : installations) {
+                index.put(tool.getName(), tool);
+            }
+            return Collections.unmodifiableMap(index);
+        }
+
+        public ChrootToolset getInstallation(String name) {
+            return byName.get(name);
         }
 
         @Override
@@ -173,15 +215,21 @@ public final class ChrootToolset extends ToolInstallation implements Environment
         @Override
         public void setInstallations(ChrootToolset... installations) {
 
-            List<ChrootToolset> old_installations = Arrays.asList(this.installations);
+            Map<ChrootToolset, ChrootToolset> old_installations = new HashMap<ChrootToolset, ChrootToolset>();
+            for (ChrootToolset tool : this.installations) {
+                if (!old_installations.containsKey(tool)) {
+                    old_installations.put(tool, tool);
+                }
+            }
             for (ChrootToolset tool : installations) {
-                int index = old_installations.indexOf(tool);
-                if (index != -1) {
-                    tool.setLastModified(old_installations.get(index).getLastModified());
+                ChrootToolset old = old_installations.get(tool);
+                if (old != null) {
+                    tool.setLastModified(old.getLastModified());
                 }
             }
 
             this.installations = installations;
+            this.byName = index(installations);
             save();
         }
 
@@ -26,6 +26,7 @@ package org.jenkinsci.plugins.chroot.tools;
 import hudson.Extension;
 import hudson.tools.ToolProperty;
 import hudson.tools.ToolPropertyDescriptor;
+import hudson.util.ListBoxModel;
 import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -35,6 +36,7 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.jenkinsci.plugins.chroot.util.ChrootUtil;
+import org.jenkinsci.plugins.chroot.util.Compression;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 
@@ -49,14 +51,28 @@ public final class ChrootToolsetProperty extends ToolProperty<ChrootToolset> imp
     private File tarball; //deprecated
     private List<Repository> repositories;
     private String setupArguments;
+    private String compression;
+    private int compressionThreads;
+    private int tmpfsSize;
+    private int ccacheSize;
+    private transient int hash;
 
     public String getSetupArguments() {
         return setupArguments;
     }
 
-    @DataBoundConstructor
     public ChrootToolsetProperty(String setupCommand, String packages, String tarball, String setupArguments, List<Repository> repos) {
+        this(setupCommand, packages, tarball, setupArguments, repos, null, 0, 0, 0);
+    }
+
+    @DataBoundConstructor
+    public ChrootToolsetProperty(String setupCommand, String packages, String tarball, String setupArguments, List<Repository> repos,
+            String compression, int compressionThreads, int tmpfsSize, int ccacheSize) {
         super();
+        this.ccacheSize = Math.max(0, ccacheSize);
+        this.tmpfsSize = Math.max(0, tmpfsSize);
+        this.compression = Compression.forName(compression).name();
+        this.compressionThreads = Math.max(0, compressionThreads);
         this.tarball = null;
         this.packages = ChrootUtil.splitPackages(packages);
         this.setupArguments = setupArguments;
@@ -96,33 +112,76 @@ public final class ChrootToolsetProperty extends ToolProperty<ChrootToolset> imp
       } 
       final ChrootToolsetProperty other = (ChrootToolsetProperty)obj;
       
+      if (this.hashCode() != other.hashCode())
+      {
+         return false;
+      }
+      
       return new EqualsBuilder()
-              .append(this.packages.toArray(new String[this.packages.size()]),
-              other.packages.toArray(new String[other.packages.size()])
-              )
-              .append(this.repositories.toArray(new Repository[this.packages.size()]),
-              other.repositories.toArray(new Repository[other.packages.size()])
-              )
+              .append(this.packages, other.packages)
+              .append(this.repositories, other.repositories)
               .append(this.setupCommand, other.setupCommand)
               .append(this.setupArguments, other.setupArguments)
+              .append(this.isCcache(), other.isCcache())
               .isEquals();
     }
 
+    /**
+     * The hash is cached, because toolsets are compared by their properties
+     * whenever the installations are saved.
+     */
     @Override
     public int hashCode() {
-        return new HashCodeBuilder()
-                .append(this.packages)
-                .append(this.setupCommand)
-                .append(this.packages.toArray(new String[this.packages.size()]))
-                .append(this.repositories.toArray(new Repository[this.packages.size()]))
-                .append(this.setupArguments)
-                .toHashCode();
+        if (hash == 0) {
+            hash = new HashCodeBuilder()
+                    .append(this.packages)
+                    .append(this.setupCommand)
+                    .append(this.repositories)
+                    .append(this.setupArguments)
+                    .append(this.isCcache())
+                    .toHashCode();
+        }
+        return hash;
     }
     
     public String getSetupCommand() {
         return setupCommand;
     }
 
+    /**
+     * The compression is not part of equals, because changing it converts
+     * the existing images instead of creating them again.
+     */
+    public Compression getCompression() {
+        return Compression.forName(compression);
+    }
+
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    /**
+     * Size limit in MB of the tmpfs builds run in, 0 if builds run on disk.
+     * Like the compression it does not change the image, so it is not part
+     * of equals.
+     */
+    public int getTmpfsSize() {
+        return tmpfsSize;
+    }
+
+    /**
+     * Size limit in MB of the compiler cache of the toolset on every node,
+     * 0 if builds do not use ccache. Only enabling or disabling the cache
+     * changes the image, because ccache has to be installed.
+     */
+    public int getCcacheSize() {
+        return ccacheSize;
+    }
+
+    public boolean isCcache() {
+        return ccacheSize > 0;
+    }
+
     @Extension
     public static final class ChrootToolsetPropertyDescriptor extends ToolPropertyDescriptor {
 
@@ -136,6 +195,14 @@ public final class ChrootToolsetProperty extends ToolProperty<ChrootToolset> imp
             return "Advanced configuration";
         }   
 
+        public ListBoxModel doFillCompressionItems() {
+            ListBoxModel items = new ListBoxModel();
+            for (Compression c : Compression.values()) {
+                items.add(c.getDisplayName(), c.name());
+            }
+            return items;
+        }
+
         @Override
         public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
             boolean x = super.configure(req, json);
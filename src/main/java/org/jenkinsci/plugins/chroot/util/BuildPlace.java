@@ -0,0 +1,242 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Directory pbuilder unpacks a chroot into. Either pbuilder's default on
+ * disk, or a size limited tmpfs which is mounted for one run and removed
+ * afterwards.
+ *
+ * A tmpfs only takes memory when it is written, so concurrent builds on a
+ * node would all see enough free memory. The size of every mounted tmpfs is
+ * therefore reserved until it is released, and only the memory which is not
+ * reserved admits another one.
+ *
+ * @author rmohr
+ */
+public final class BuildPlace {
+
+    public static final String BUILDPLACE_DIR = "chroot-buildplace";
+    /**
+     * Memory which has to stay available besides the tmpfs.
+     */
+    static final long RESERVE_MB = 512;
+    private static final Pattern MEM_AVAILABLE = Pattern.compile("^MemAvailable:\\s+(\\d+) kB", Pattern.MULTILINE);
+    private static final Pattern MEM_FREE = Pattern.compile("^(?:MemFree|Buffers|Cached):\\s+(\\d+) kB", Pattern.MULTILINE);
+    private static final BuildPlace DISK = new BuildPlace(null, null, null, null, 0);
+    private static final Map<String, Long> reserved = new HashMap<String, Long>();
+    private FilePath dir;
+    private final Launcher launcher;
+    private final String sudo;
+    private final String nodeName;
+    private final int sizeMb;
+
+    private BuildPlace(FilePath dir, Launcher launcher, String sudo, String nodeName, int sizeMb) {
+        this.dir = dir;
+        this.launcher = launcher;
+        this.sudo = sudo;
+        this.nodeName = nodeName;
+        this.sizeMb = sizeMb;
+    }
+
+    public static BuildPlace disk() {
+        return DISK;
+    }
+
+    /**
+     * Mounts a tmpfs of at most sizeMb for the given image, or returns the
+     * disk if the unpacked image is not expected to fit, the node is low on
+     * memory or mounting fails. The decision is logged.
+     */
+    public static BuildPlace acquire(Node node, FilePath image, int sizeMb, String sudo, Launcher launcher, TaskListener log) throws IOException, InterruptedException {
+        if (sizeMb <= 0) {
+            return DISK;
+        }
+        long required = estimateSize(image);
+        if (required > sizeMb) {
+            log.getLogger().println(String.format("Using disk build place: the chroot needs about %d MB, the tmpfs is limited to %d MB", required, sizeMb));
+            return DISK;
+        }
+        long available = getMemAvailable(node);
+        long others = reserve(node.getNodeName(), available, sizeMb);
+        if (others < 0) {
+            log.getLogger().println(String.format("Using disk build place: only %d MB of memory available for a %d MB tmpfs, %d MB are reserved by other tmpfs build places",
+                    available, sizeMb, getReserved(node.getNodeName())));
+            return DISK;
+        }
+        boolean mounted = false;
+        try {
+            FilePath dir = node.getRootPath().child(BUILDPLACE_DIR);
+            dir.mkdirs();
+            dir = dir.createTempDir("tmpfs", "");
+            ArgumentListBuilder cmd = new ArgumentListBuilder().add(sudo).add("mount")
+                    .add("-t", "tmpfs").add("-o", "size=" + sizeMb + "m,mode=0755")
+                    .add("chroot-tmpfs").add(dir.getRemote());
+            if (launcher.launch().cmds(cmd).stdout(log).stderr(log.getLogger()).join() != 0) {
+                log.getLogger().println("Using disk build place: mounting the tmpfs failed");
+                dir.delete();
+                return DISK;
+            }
+            mounted = true;
+            log.getLogger().println(String.format("Using tmpfs build place %s (%d MB, chroot needs about %d MB, %d MB reserved by other tmpfs build places)",
+                    dir.getRemote(), sizeMb, required, others));
+            return new BuildPlace(dir, launcher, sudo, node.getNodeName(), sizeMb);
+        } finally {
+            if (!mounted) {
+                unreserve(node.getNodeName(), sizeMb);
+            }
+        }
+    }
+
+    /**
+     * Reserves sizeMb for a tmpfs on the node if the available memory minus
+     * the reservations of the other tmpfs build places leaves the reserve.
+     * Returns the memory reserved by the others, or -1 if the tmpfs does not
+     * fit. An unknown amount of available memory (-1) admits every tmpfs.
+     */
+    static long reserve(String nodeName, long available, int sizeMb) {
+        synchronized (reserved) {
+            long others = getReserved(nodeName);
+            if (available >= 0 && available - others < sizeMb + RESERVE_MB) {
+                return -1;
+            }
+            reserved.put(nodeName, others + sizeMb);
+            return others;
+        }
+    }
+
+    static void unreserve(String nodeName, int sizeMb) {
+        synchronized (reserved) {
+            long left = getReserved(nodeName) - sizeMb;
+            if (left > 0) {
+                reserved.put(nodeName, left);
+            } else {
+                reserved.remove(nodeName);
+            }
+        }
+    }
+
+    static long getReserved(String nodeName) {
+        synchronized (reserved) {
+            Long mb = reserved.get(nodeName);
+            return mb == null ? 0 : mb;
+        }
+    }
+
+    public boolean isTmpfs() {
+        return dir != null;
+    }
+
+    /**
+     * Returns the pbuilder arguments which select this build place.
+     */
+    public List<String> getArguments() {
+        if (dir == null) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList("--buildplace", dir.getRemote());
+    }
+
+    /**
+     * Unmounts the tmpfs, which frees its memory, and drops its reservation.
+     * Failures are logged and not thrown, releasing happens in finally blocks
+     * and must not hide the failure of the build itself.
+     */
+    public synchronized void release(TaskListener log) {
+        if (dir == null) {
+            return;
+        }
+        FilePath mounted = dir;
+        dir = null;
+        unreserve(nodeName, sizeMb);
+        try {
+            ArgumentListBuilder cmd = new ArgumentListBuilder().add(sudo).add("umount").add(mounted.getRemote());
+            if (launcher.launch().cmds(cmd).stdout(log).stderr(log.getLogger()).join() == 0) {
+                mounted.delete();
+            } else {
+                log.error("Could not unmount the tmpfs build place " + mounted.getRemote());
+            }
+        } catch (IOException ex) {
+            log.error("Could not unmount the tmpfs build place " + mounted.getRemote() + ": " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            log.error("Interrupted while unmounting the tmpfs build place " + mounted.getRemote());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the expected size in MB of the unpacked image, with room for
+     * packages installed by the build.
+     */
+    static long estimateSize(FilePath image) throws IOException, InterruptedException {
+        long size = image.length();
+        if (Compression.forImage(image.getName()) != Compression.NONE) {
+            // root file systems typically compress to a third
+            size *= 3;
+        }
+        return size * 3 / 2 / (1024 * 1024);
+    }
+
+    /**
+     * Returns the memory in MB the node can spare without swapping, or -1 if
+     * it is unknown.
+     */
+    static long getMemAvailable(Node node) throws IOException, InterruptedException {
+        FilePath meminfo = new FilePath(node.getChannel(), "/proc/meminfo");
+        if (!meminfo.exists()) {
+            return -1;
+        }
+        return parseMemAvailable(meminfo.readToString());
+    }
+
+    static long parseMemAvailable(String meminfo) {
+        Matcher m = MEM_AVAILABLE.matcher(meminfo);
+        if (m.find()) {
+            return Long.parseLong(m.group(1)) / 1024;
+        }
+        // kernels before 3.14
+        m = MEM_FREE.matcher(meminfo);
+        long kb = 0;
+        boolean found = false;
+        while (m.find()) {
+            kb += Long.parseLong(m.group(1));
+            found = true;
+        }
+        return found ? kb / 1024 : -1;
+    }
+}
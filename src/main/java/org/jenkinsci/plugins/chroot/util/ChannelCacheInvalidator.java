@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Drops the values {@link Identity}, {@link Platform} and {@link HealthCache}
+ * cache per channel when an agent goes offline or reconnects.
+ *
+ * The channel of a computer is already gone when it is reported offline, so
+ * the channel is remembered when the computer comes online.
+ *
+ * @author rmohr
+ */
+@Extension
+public final class ChannelCacheInvalidator extends ComputerListener {
+
+    private final Map<Computer, VirtualChannel> channels = new WeakHashMap<Computer, VirtualChannel>();
+
+    @Override
+    public void onOnline(Computer c, TaskListener listener) {
+        VirtualChannel old;
+        synchronized (channels) {
+            old = channels.put(c, c.getChannel());
+        }
+        invalidate(old);
+    }
+
+    @Override
+    public void onOffline(Computer c) {
+        VirtualChannel channel;
+        synchronized (channels) {
+            channel = channels.remove(c);
+        }
+        invalidate(channel);
+    }
+
+    static void invalidate(VirtualChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        Identity.invalidate(channel);
+        Platform.invalidate(channel);
+        HealthCache.invalidate(channel);
+    }
+}
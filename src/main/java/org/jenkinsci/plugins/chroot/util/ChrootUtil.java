@@ -27,8 +27,18 @@ import com.google.common.base.CharMatcher;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.os.PosixAPI;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  *
@@ -36,7 +46,9 @@ import java.util.List;
  */
 public class ChrootUtil {
 
+    public static final String UPDATED_SUFFIX = ".updated";
     public static final String MD5_SUFFIX = ".md5";
+    private static final Logger logger = Logger.getLogger("jenkins.plugins.chroot.util.ChrootUtil");
     private static final Splitter stringSplitter = Splitter.on(CharMatcher.anyOf(",; \t\n\r")).trimResults().omitEmptyStrings();
 
     public static List<String> splitPackages(String packages) {
@@ -56,9 +68,8 @@ public class ChrootUtil {
     }
 
     public static FilePath saveDigest(FilePath file) throws IOException, InterruptedException {
-        FilePath md5 = getDigestFile(file);
-        md5.write(file.digest(), null);
-        return md5;
+        file.act(new SaveDigest(DigestAlgorithm.getDefault()));
+        return getDigestFile(file);
     }
 
     public static String loadDigest(FilePath file) throws IOException, InterruptedException {
@@ -73,17 +84,203 @@ public class ChrootUtil {
         return new FilePath(file.getParent(), file.getName() + MD5_SUFFIX);
     }
 
+    public static FilePath getImageFile(FilePath dir, String name, Compression compression) {
+        return dir.child(name + compression.getSuffix());
+    }
+
+    public static FilePath getFingerprintFile(FilePath file) {
+        return new FilePath(file.getParent(), file.getName() + Fingerprint.SUFFIX);
+    }
+
+    public static void deleteDigest(FilePath file) throws IOException, InterruptedException {
+        getDigestFile(file).delete();
+        getFingerprintFile(file).delete();
+        getUpdatedFile(file).delete();
+    }
+
+    public static FilePath getUpdatedFile(FilePath image) {
+        return new FilePath(image.getParent(), image.getName() + UPDATED_SUFFIX);
+    }
+
+    /**
+     * Records that the package indices and packages of the image are up to
+     * date.
+     */
+    public static void markUpdated(FilePath image) throws IOException, InterruptedException {
+        getUpdatedFile(image).write(Long.toString(System.currentTimeMillis()), null);
+    }
+
+    /**
+     * Returns when the image was last updated, or 0 if this is unknown.
+     */
+    public static long getLastUpdated(FilePath image) throws IOException, InterruptedException {
+        FilePath updated = getUpdatedFile(image);
+        if (!updated.exists()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(updated.readToString().trim());
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Checks the image against its stored digest. The image is only read
+     * again if its size, modification time or inode changed since the digest
+     * was taken.
+     */
     public static boolean isFileIntact(FilePath file) throws IOException, InterruptedException {
-        if (!file.exists()) {
-            return false;
+        return file.act(new VerifyDigest());
+    }
+
+    /**
+     * Stores the digest and the fingerprint of a file, assuming that its
+     * content is known to have the given digest.
+     */
+    static void writeDigest(File file, String digest) throws IOException, InterruptedException {
+        new FilePath(new File(file.getParentFile(), file.getName() + MD5_SUFFIX)).write(digest, null);
+        Fingerprint.of(file, digest).save(file);
+    }
+
+    /**
+     * Returns value quoted for the shell.
+     */
+    public static String shellQuote(String value) {
+        StringBuilder out = new StringBuilder();
+        EnvironmentFile.quote(out, value);
+        return out.toString();
+    }
+
+    /**
+     * Copies source to target and computes the digest of the copied data in
+     * the same pass.
+     */
+    static String copyAndDigest(File source, File target, DigestAlgorithm algorithm) throws IOException {
+        DigestAlgorithm.Hasher hasher = algorithm.newHasher();
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(target);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    hasher.update(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
         }
-        String digest = loadDigest(file);
-        if (digest == null) {
-            return false;
+        target.setLastModified(source.lastModified());
+        return hasher.finish();
+    }
+
+    private static final class SaveDigest implements FileCallable<String> {
+
+        private final DigestAlgorithm algorithm;
+
+        public SaveDigest(DigestAlgorithm algorithm) {
+            this.algorithm = algorithm;
+        }
+
+        public String invoke(File file, VirtualChannel channel) throws IOException, InterruptedException {
+            Fingerprint fingerprint = Fingerprint.load(file);
+            String digest;
+            if (fingerprint != null && fingerprint.matches(file)
+                    && DigestAlgorithm.forDigest(fingerprint.getDigest()) == algorithm) {
+                digest = fingerprint.getDigest();
+            } else {
+                digest = algorithm.digest(file);
+            }
+            writeDigest(file, digest);
+            return digest;
         }
-        if (!file.digest().equals(digest)) {
-            return false;
+    }
+
+    private static final class VerifyDigest implements FileCallable<Boolean> {
+
+        public Boolean invoke(File file, VirtualChannel channel) throws IOException, InterruptedException {
+            if (!file.exists()) {
+                return false;
+            }
+            String digest = loadDigest(new FilePath(file));
+            if (digest == null) {
+                return false;
+            }
+            Fingerprint fingerprint = Fingerprint.load(file);
+            if (fingerprint != null && fingerprint.matches(file) && digest.equals(fingerprint.getDigest())) {
+                return true;
+            }
+            if (!DigestAlgorithm.forDigest(digest).digest(file).equals(digest)) {
+                return false;
+            }
+            Fingerprint.of(file, digest).save(file);
+            return true;
+        }
+    }
+
+    /**
+     * Creates a hardlink. Returns false if the file system or the platform
+     * does not support it.
+     */
+    public static boolean hardLink(File source, File target) {
+        try {
+            return PosixAPI.get().link(source.getAbsolutePath(), target.getAbsolutePath()) == 0;
+        } catch (RuntimeException ex) {
+            logger.log(Level.FINE, "hardlinking is not supported", ex);
+        } catch (LinkageError ex) {
+            logger.log(Level.FINE, "hardlinking is not supported", ex);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of hardlinks of the file or -1 if it can't be
+     * determined.
+     */
+    public static int linkCount(File file) {
+        try {
+            return PosixAPI.get().stat(file.getAbsolutePath()).nlink();
+        } catch (RuntimeException ex) {
+            logger.log(Level.FINE, "link count is not supported", ex);
+        } catch (LinkageError ex) {
+            logger.log(Level.FINE, "link count is not supported", ex);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the inode number of the file or -1 if it can't be determined.
+     */
+    public static long inode(File file) {
+        try {
+            return PosixAPI.get().stat(file.getAbsolutePath()).ino();
+        } catch (RuntimeException ex) {
+            logger.log(Level.FINE, "inode numbers are not supported", ex);
+        } catch (LinkageError ex) {
+            logger.log(Level.FINE, "inode numbers are not supported", ex);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the time the file was last used, its access time or its
+     * modification time if that is later or the access time can't be
+     * determined. Most file systems update the access time at most once a
+     * day (relatime), which is precise enough to tell unused files apart.
+     */
+    public static long lastUsed(File file) {
+        long modified = file.lastModified();
+        try {
+            return Math.max(modified, PosixAPI.get().stat(file.getAbsolutePath()).atime() * 1000);
+        } catch (RuntimeException ex) {
+            logger.log(Level.FINE, "access times are not supported", ex);
+        } catch (LinkageError ex) {
+            logger.log(Level.FINE, "access times are not supported", ex);
         }
-        return true;
+        return modified;
     }
 }
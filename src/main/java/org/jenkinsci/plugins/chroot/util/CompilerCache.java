@@ -0,0 +1,135 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.FilePath;
+import hudson.model.Node;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Node wide ccache directory of a toolset, which is bind mounted into the
+ * chroot of every build.
+ *
+ * @author rmohr
+ */
+public class CompilerCache {
+
+    public static final String CACHE_NAME = "ccache";
+    private static final Map<String, Statistics> statistics = new HashMap<String, Statistics>();
+    // ccache 4 --print-stats
+    private static final Pattern PRINT_STATS = Pattern.compile("^(direct_cache_hit|preprocessed_cache_hit|cache_miss)\\t(\\d+)$", Pattern.MULTILINE);
+    // ccache 3 -s
+    private static final Pattern SHOW_STATS = Pattern.compile("^(cache hit \\(direct\\)|cache hit \\(preprocessed\\)|cache miss)\\s+(\\d+)$", Pattern.MULTILINE);
+
+    public static FilePath getCache(Node node, String toolset) {
+        return PackageCache.getCache(node, CACHE_NAME).child(toolset);
+    }
+
+    /**
+     * Returns shell commands which make the compilers of the chroot use the
+     * cache, limit it to sizeMb and write its statistics to the given files
+     * before the build and when the script exits.
+     */
+    public static String getSetup(FilePath cache, FilePath workspace, int sizeMb, FilePath before, FilePath after) {
+        String stats = "{ ccache --print-stats 2>/dev/null || ccache -s; } > '%s'";
+        return String.format("if command -v ccache > /dev/null 2>&1; then\n"
+                + "export CCACHE_DIR='%s'\n"
+                + "export CCACHE_BASEDIR='%s'\n"
+                + "export PATH=/usr/lib/ccache:/usr/lib64/ccache:$PATH\n"
+                + "ccache -M %dM > /dev/null\n"
+                + stats + "\n"
+                + "trap \"" + stats.replace("'", "\\\"") + "\" EXIT\n"
+                + "else\n"
+                + "echo 'ccache is not installed in the chroot environment, compiling without it'\n"
+                + "fi\n",
+                cache.getRemote(), workspace.getRemote(), sizeMb, before.getRemote(), after.getRemote());
+    }
+
+    /**
+     * Parses the output of ccache --print-stats or ccache -s into the number
+     * of hits and misses, or returns null if neither format matches.
+     */
+    public static long[] parseStats(String output) {
+        long[] stats = parseStats(PRINT_STATS.matcher(output));
+        return stats != null ? stats : parseStats(SHOW_STATS.matcher(output));
+    }
+
+    private static long[] parseStats(Matcher m) {
+        long[] stats = null;
+        while (m.find()) {
+            if (stats == null) {
+                stats = new long[2];
+            }
+            stats[m.group(1).endsWith("miss") ? 1 : 0] += Long.parseLong(m.group(2));
+        }
+        return stats;
+    }
+
+    public static Statistics getStatistics(String toolset) {
+        synchronized (statistics) {
+            Statistics s = statistics.get(toolset);
+            if (s == null) {
+                s = new Statistics();
+                statistics.put(toolset, s);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Compilations served from the cache of a toolset.
+     */
+    public static final class Statistics implements Serializable {
+
+        private long hits;
+        private long misses;
+
+        public synchronized void record(long hits, long misses) {
+            this.hits += hits;
+            this.misses += misses;
+        }
+
+        public synchronized long getHits() {
+            return hits;
+        }
+
+        public synchronized long getMisses() {
+            return misses;
+        }
+
+        @Override
+        public synchronized String toString() {
+            long compilations = hits + misses;
+            if (compilations == 0) {
+                return "no compilations recorded yet";
+            }
+            return String.format("%d of %d compilations served from cache (%d%%)",
+                    hits, compilations, hits * 100 / compilations);
+        }
+    }
+}
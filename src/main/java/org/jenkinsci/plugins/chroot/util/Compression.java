@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.FilePath;
+import java.io.IOException;
+
+/**
+ * Compression of chroot images. The compression is part of the image file
+ * name, so every working copy knows how it has to be packed and unpacked.
+ *
+ * @author rmohr
+ */
+public enum Compression {
+
+    // PIGZ has to be checked before GZIP, because its suffix ends with .tgz
+    PIGZ("pigz", ".pigz.tgz") {
+        @Override
+        public String getCommand(int threads) {
+            return threads > 0 ? "pigz -p " + threads : "pigz";
+        }
+    },
+    GZIP("gzip", ".tgz") {
+        @Override
+        public String getCommand(int threads) {
+            return "gzip";
+        }
+    },
+    ZSTD("zstd", ".tar.zst") {
+        @Override
+        public String getCommand(int threads) {
+            return "zstd -q -T" + Math.max(0, threads);
+        }
+    },
+    NONE("uncompressed", ".tar") {
+        @Override
+        public String getCommand(int threads) {
+            return "cat";
+        }
+    };
+    private final String displayName;
+    private final String suffix;
+
+    private Compression(String displayName, String suffix) {
+        this.displayName = displayName;
+        this.suffix = suffix;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * Returns the command line which compresses stdin to stdout, or
+     * decompresses it when called with -d.
+     */
+    public abstract String getCommand(int threads);
+
+    public static Compression forName(String name) {
+        if (name != null) {
+            try {
+                return valueOf(name);
+            } catch (IllegalArgumentException ex) {
+                // fall through to the default
+            }
+        }
+        return GZIP;
+    }
+
+    /**
+     * Returns the compression of an image by its file name.
+     */
+    public static Compression forImage(String fileName) {
+        for (Compression c : values()) {
+            if (fileName.endsWith(c.getSuffix())) {
+                return c;
+            }
+        }
+        return GZIP;
+    }
+
+    public static String stripSuffix(String fileName) {
+        Compression c = forImage(fileName);
+        if (fileName.endsWith(c.getSuffix())) {
+            return fileName.substring(0, fileName.length() - c.getSuffix().length());
+        }
+        return fileName;
+    }
+
+    /**
+     * Returns a program which pbuilder can use as --compressprog, or null if
+     * pbuilder's default gzip should be used. The program is created next to
+     * the image.
+     */
+    public FilePath getProgram(FilePath image, int threads) throws IOException, InterruptedException {
+        if (this == GZIP) {
+            return null;
+        }
+        FilePath program = image.getParent().child("." + name().toLowerCase() + "-" + threads + ".sh");
+        if (!program.exists()) {
+            String script;
+            if (this == NONE) {
+                // pbuilder passes -c and -d, which cat does not understand
+                script = "#!/bin/sh\n"
+                        + "while [ $# -gt 0 ]; do case \"$1\" in -*) shift ;; *) break ;; esac; done\n"
+                        + "exec cat \"$@\"\n";
+            } else {
+                script = "#!/bin/sh\nexec " + getCommand(threads) + " \"$@\"\n";
+            }
+            FilePath tmp = image.getParent().createTempFile(".compress", ".tmp");
+            tmp.write(script, null);
+            tmp.chmod(0755);
+            tmp.renameTo(program);
+        }
+        return program;
+    }
+}
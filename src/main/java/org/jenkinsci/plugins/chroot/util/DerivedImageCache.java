@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Node wide cache of images with additional packages installed.
+ *
+ * Entries are keyed by the digest of the base image and the normalized
+ * package list. Like the {@link ImageStore}, entries are handed out to
+ * workspaces by hardlink. Entries which were not used for the longest time
+ * are evicted when the cache exceeds its quota.
+ *
+ * @author rmohr
+ */
+public class DerivedImageCache {
+
+    public static final String CACHE_DIR = "chroot-derived";
+    public static final String KEY_SUFFIX = ".key";
+    public static final String USED_SUFFIX = ".used";
+
+    public static FilePath getCache(Node node) {
+        return node.getRootPath().child(CACHE_DIR);
+    }
+
+    /**
+     * Returns the sorted package list without duplicates.
+     */
+    public static List<String> normalize(List<String> packages) {
+        return new ArrayList<String>(new TreeSet<String>(packages));
+    }
+
+    public static String getKey(String baseDigest, List<String> packages) {
+        return Util.getDigestOf(baseDigest + "\n" + StringUtils.join(normalize(packages), " "));
+    }
+
+    public static FilePath getKeyFile(FilePath image) {
+        return new FilePath(image.getParent(), image.getName() + KEY_SUFFIX);
+    }
+
+    /**
+     * Returns the key of the derived image the working copy was created
+     * from, or null.
+     */
+    public static String loadKey(FilePath image) throws IOException, InterruptedException {
+        FilePath key = getKeyFile(image);
+        if (!key.exists()) {
+            return null;
+        }
+        return key.readToString().trim();
+    }
+
+    /**
+     * Replaces target with the cached image for the given key. Returns false
+     * if there is no such image.
+     */
+    public static boolean checkout(FilePath cache, String key, FilePath target) throws IOException, InterruptedException {
+        return cache.act(new Checkout(key, target.getRemote()));
+    }
+
+    /**
+     * Adds the image to the cache and evicts the least recently used entries
+     * until the cache fits into the quota.
+     */
+    public static void publish(FilePath cache, String key, FilePath image, long quota) throws IOException, InterruptedException {
+        String digest = ChrootUtil.loadDigest(image);
+        cache.act(new Publish(key, image.getRemote(), digest, quota));
+        getKeyFile(image).write(key, null);
+    }
+
+    private static final class Checkout implements FileCallable<Boolean> {
+
+        private final String key;
+        private final String target;
+
+        public Checkout(String key, String target) {
+            this.key = key;
+            this.target = target;
+        }
+
+        public Boolean invoke(File cache, VirtualChannel channel) throws IOException, InterruptedException {
+            File entry = new File(cache, key);
+            File _target = new File(target);
+            synchronized (ImageStore.lockFor(cache)) {
+                if (!entry.exists()) {
+                    return false;
+                }
+                String digest = ChrootUtil.loadDigest(new FilePath(entry));
+                _target.getParentFile().mkdirs();
+                ImageStore.linkOrCopy(entry, _target, digest);
+                ChrootUtil.writeDigest(_target, digest);
+                new FilePath(new File(cache, key + USED_SUFFIX)).touch(System.currentTimeMillis());
+            }
+            new FilePath(new File(_target.getParentFile(), _target.getName() + KEY_SUFFIX)).write(key, null);
+            return true;
+        }
+    }
+
+    private static final class Publish implements FileCallable<Void> {
+
+        private final String key;
+        private final String image;
+        private final String digest;
+        private final long quota;
+
+        public Publish(String key, String image, String digest, long quota) {
+            this.key = key;
+            this.image = image;
+            this.digest = digest;
+            this.quota = quota;
+        }
+
+        public Void invoke(File cache, VirtualChannel channel) throws IOException, InterruptedException {
+            File entry = new File(cache, key);
+            synchronized (ImageStore.lockFor(cache)) {
+                cache.mkdirs();
+                ImageStore.linkOrCopy(new File(image), entry, digest);
+                ChrootUtil.writeDigest(entry, digest);
+                new FilePath(new File(cache, key + USED_SUFFIX)).touch(System.currentTimeMillis());
+                evict(cache, quota);
+            }
+            return null;
+        }
+    }
+
+    static void evict(File cache, long quota) {
+        File[] entries = cache.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().indexOf('.') == -1;
+            }
+        });
+        if (entries == null) {
+            return;
+        }
+        long size = 0;
+        for (File entry : entries) {
+            size += entry.length();
+        }
+        Arrays.sort(entries, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long usedA = new File(a.getParentFile(), a.getName() + USED_SUFFIX).lastModified();
+                long usedB = new File(b.getParentFile(), b.getName() + USED_SUFFIX).lastModified();
+                return usedA < usedB ? -1 : (usedA == usedB ? 0 : 1);
+            }
+        });
+        for (File entry : entries) {
+            if (size <= quota) {
+                break;
+            }
+            size -= entry.length();
+            String name = entry.getName();
+            entry.delete();
+            new File(cache, name + ChrootUtil.MD5_SUFFIX).delete();
+            new File(cache, name + Fingerprint.SUFFIX).delete();
+            new File(cache, name + USED_SUFFIX).delete();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.Util;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Digest algorithms for chroot images.
+ *
+ * MD5 is the plain digest which was always used by the plugin.
+ * CHUNKED_MD5 hashes fixed size chunks independently and then hashes the
+ * list of chunk digests, which allows hashing big images on all cores.
+ * Its digests carry a prefix, so that a stored digest always identifies the
+ * algorithm which created it.
+ *
+ * @author rmohr
+ */
+public enum DigestAlgorithm {
+
+    MD5("") {
+        @Override
+        public Hasher newHasher() {
+            final MessageDigest md5 = newMd5();
+            return new Hasher() {
+                public void update(byte[] buffer, int offset, int length) {
+                    md5.update(buffer, offset, length);
+                }
+
+                public String finish() {
+                    return Util.toHexString(md5.digest());
+                }
+            };
+        }
+    },
+    CHUNKED_MD5("cmd5-") {
+        @Override
+        public Hasher newHasher() {
+            return new ChunkedHasher(CHUNK_SIZE);
+        }
+
+        @Override
+        public String digest(File file) throws IOException, InterruptedException {
+            return chunkedDigest(file, CHUNK_SIZE, Runtime.getRuntime().availableProcessors());
+        }
+    };
+    static final int CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final String prefix;
+
+    private DigestAlgorithm(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public abstract Hasher newHasher();
+
+    public String digest(File file) throws IOException, InterruptedException {
+        Hasher hasher = newHasher();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                hasher.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return hasher.finish();
+    }
+
+    /**
+     * Returns the algorithm which created the given digest.
+     */
+    public static DigestAlgorithm forDigest(String digest) {
+        if (digest != null && digest.startsWith(CHUNKED_MD5.getPrefix())) {
+            return CHUNKED_MD5;
+        }
+        return MD5;
+    }
+
+    /**
+     * Returns the algorithm used for new digests, which can be selected with
+     * the system property org.jenkinsci.plugins.chroot.util.DigestAlgorithm.
+     */
+    public static DigestAlgorithm getDefault() {
+        String name = System.getProperty(DigestAlgorithm.class.getName());
+        if (name != null) {
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                // fall through to the default
+            }
+        }
+        return MD5;
+    }
+
+    public interface Hasher {
+
+        void update(byte[] buffer, int offset, int length);
+
+        String finish();
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static final class ChunkedHasher implements Hasher {
+
+        private final int chunkSize;
+        private final MessageDigest outer = newMd5();
+        private MessageDigest chunk = newMd5();
+        private long inChunk = 0;
+
+        ChunkedHasher(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        public void update(byte[] buffer, int offset, int length) {
+            while (length > 0) {
+                int n = (int) Math.min(length, chunkSize - inChunk);
+                chunk.update(buffer, offset, n);
+                inChunk += n;
+                offset += n;
+                length -= n;
+                if (inChunk == chunkSize) {
+                    outer.update(chunk.digest());
+                    inChunk = 0;
+                }
+            }
+        }
+
+        public String finish() {
+            if (inChunk > 0) {
+                outer.update(chunk.digest());
+                inChunk = 0;
+            }
+            return CHUNKED_MD5.getPrefix() + Util.toHexString(outer.digest());
+        }
+    }
+
+    static String chunkedDigest(final File file, final int chunkSize, int threads) throws IOException, InterruptedException {
+        long length = file.length();
+        int chunks = (int) ((length + chunkSize - 1) / chunkSize);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, chunks)));
+        try {
+            List<Future<byte[]>> digests = new ArrayList<Future<byte[]>>(chunks);
+            for (int i = 0; i < chunks; i++) {
+                final long offset = (long) i * chunkSize;
+                final int size = (int) Math.min(chunkSize, length - offset);
+                digests.add(executor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        MessageDigest md5 = newMd5();
+                        RandomAccessFile in = new RandomAccessFile(file, "r");
+                        try {
+                            in.seek(offset);
+                            byte[] buffer = new byte[BUFFER_SIZE];
+                            int remaining = size;
+                            while (remaining > 0) {
+                                int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                                if (read == -1) {
+                                    throw new IOException(file + " was truncated while hashing");
+                                }
+                                md5.update(buffer, 0, read);
+                                remaining -= read;
+                            }
+                        } finally {
+                            in.close();
+                        }
+                        return md5.digest();
+                    }
+                }));
+            }
+            MessageDigest outer = newMd5();
+            for (Future<byte[]> digest : digests) {
+                outer.update(digest.get());
+            }
+            return CHUNKED_MD5.getPrefix() + Util.toHexString(outer.digest());
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause().getMessage(), ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
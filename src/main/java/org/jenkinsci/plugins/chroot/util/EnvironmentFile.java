@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Renders the build environment as a shell script which is sourced inside
+ * the chroot. Variables which are already set in the chroot are kept.
+ *
+ * @author rmohr
+ */
+public class EnvironmentFile {
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private static final Pattern ALL = Pattern.compile(".*");
+    private static final Pattern NONE = Pattern.compile("(?!)");
+    private final Pattern allow;
+    private final Pattern deny;
+
+    /**
+     * Only variables matching allow and not matching deny are exported. Null
+     * patterns are ignored.
+     */
+    public EnvironmentFile(Pattern allow, Pattern deny) {
+        this.allow = allow;
+        this.deny = deny;
+    }
+
+    /**
+     * Creates the filter from the configured regular expressions, where empty
+     * means no filter. An invalid expression exports nothing, so that a typo
+     * in the deny list does not leak secrets into the chroot.
+     */
+    public static EnvironmentFile of(String allow, String deny) {
+        return new EnvironmentFile(compile(allow, NONE), compile(deny, ALL));
+    }
+
+    private static Pattern compile(String regex, Pattern invalid) {
+        if (regex == null || regex.trim().length() == 0) {
+            return null;
+        }
+        try {
+            return Pattern.compile(regex.trim());
+        } catch (PatternSyntaxException ex) {
+            return invalid;
+        }
+    }
+
+    public boolean isExported(String name) {
+        if (!NAME.matcher(name).matches()) {
+            return false;
+        }
+        if (allow != null && !allow.matcher(name).matches()) {
+            return false;
+        }
+        return deny == null || !deny.matcher(name).matches();
+    }
+
+    public String render(Map<String, String> environment) {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, String> entry : environment.entrySet()) {
+            String name = entry.getKey();
+            if (!isExported(name)) {
+                continue;
+            }
+            out.append("if [ -z \"${").append(name).append("}\" ]; then export ").append(name).append('=');
+            quote(out, entry.getValue());
+            out.append("; fi\n");
+        }
+        return out.toString();
+    }
+
+    /**
+     * Appends value in single quotes, which protects everything but single
+     * quotes themselves.
+     */
+    static void quote(StringBuilder out, String value) {
+        out.append('\'');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\'') {
+                out.append("'\\''");
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('\'');
+    }
+}
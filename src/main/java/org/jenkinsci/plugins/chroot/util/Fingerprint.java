@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Properties;
+
+/**
+ * Size, modification time and inode of an image together with its digest.
+ *
+ * As long as the metadata of an image matches its fingerprint, the stored
+ * digest can be trusted without reading the whole image again.
+ *
+ * @author rmohr
+ */
+public final class Fingerprint implements Serializable {
+
+    public static final String SUFFIX = ".fingerprint";
+    private final long size;
+    private final long mtime;
+    private final long inode;
+    private final String digest;
+
+    public Fingerprint(long size, long mtime, long inode, String digest) {
+        this.size = size;
+        this.mtime = mtime;
+        this.inode = inode;
+        this.digest = digest;
+    }
+
+    public static Fingerprint of(File file, String digest) {
+        return new Fingerprint(file.length(), file.lastModified(), ChrootUtil.inode(file), digest);
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public boolean matches(File file) {
+        return file.exists()
+                && file.length() == size
+                && file.lastModified() == mtime
+                && ChrootUtil.inode(file) == inode;
+    }
+
+    public static File getFile(File image) {
+        return new File(image.getParentFile(), image.getName() + SUFFIX);
+    }
+
+    public static Fingerprint load(File image) throws IOException {
+        File file = getFile(image);
+        if (!file.exists()) {
+            return null;
+        }
+        Properties p = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+        try {
+            return new Fingerprint(Long.parseLong(p.getProperty("size")),
+                    Long.parseLong(p.getProperty("mtime")),
+                    Long.parseLong(p.getProperty("inode")),
+                    p.getProperty("digest"));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    public void save(File image) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("size", Long.toString(size));
+        p.setProperty("mtime", Long.toString(mtime));
+        p.setProperty("inode", Long.toString(inode));
+        p.setProperty("digest", digest);
+        File file = getFile(image);
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            p.store(out, null);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not write " + file);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.chroot.ChrootGlobalConfiguration;
+import org.jenkinsci.plugins.chroot.extensions.ChrootWorker;
+
+/**
+ * Results of {@link ChrootWorker#healthCheck} per channel and worker.
+ *
+ * A result is used for the configured TTL. A stale result is still returned,
+ * but a new check is started in the background. Results are dropped when the
+ * agent goes offline or reconnects.
+ *
+ * @author rmohr
+ */
+public final class HealthCache {
+
+    private static final Logger logger = Logger.getLogger("jenkins.plugins.chroot.util.HealthCache");
+    private static final Map<VirtualChannel, Map<String, Result>> cache = new WeakHashMap<VirtualChannel, Map<String, Result>>();
+
+    private HealthCache() {
+    }
+
+    /**
+     * Returns whether the worker can be used on the node.
+     */
+    public static boolean isHealthy(ChrootWorker worker, Node node) {
+        VirtualChannel channel = node.getChannel();
+        if (channel == null) {
+            return false;
+        }
+        Result result = get(channel, worker.getName());
+        if (result == null) {
+            return check(worker, node, channel).isHealthy();
+        }
+        if (result.getAge() > getTtl() && result.startRefresh()) {
+            refresh(worker, node, channel, result);
+        }
+        return result.isHealthy();
+    }
+
+    /**
+     * Returns the cached results of all workers on the node.
+     */
+    public static List<Result> getResults(Node node) {
+        VirtualChannel channel = node.getChannel();
+        List<Result> results = new ArrayList<Result>();
+        if (channel != null) {
+            synchronized (cache) {
+                Map<String, Result> workers = cache.get(channel);
+                if (workers != null) {
+                    results.addAll(workers.values());
+                }
+            }
+        }
+        return results;
+    }
+
+    private static long getTtl() {
+        return TimeUnit.MINUTES.toMillis(ChrootGlobalConfiguration.get().getHealthCheckTtl());
+    }
+
+    private static Result get(VirtualChannel channel, String worker) {
+        synchronized (cache) {
+            Map<String, Result> workers = cache.get(channel);
+            return workers == null ? null : workers.get(worker);
+        }
+    }
+
+    private static Result check(ChrootWorker worker, Node node, VirtualChannel channel) {
+        long start = System.currentTimeMillis();
+        boolean healthy = worker.healthCheck(node.createLauncher(TaskListener.NULL));
+        Result result = new Result(worker.getName(), healthy, System.currentTimeMillis(), System.currentTimeMillis() - start);
+        synchronized (cache) {
+            Map<String, Result> workers = cache.get(channel);
+            if (workers == null) {
+                workers = new HashMap<String, Result>();
+                cache.put(channel, workers);
+            }
+            workers.put(worker.getName(), result);
+        }
+        return result;
+    }
+
+    private static void refresh(final ChrootWorker worker, final Node node, final VirtualChannel channel, final Result stale) {
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                try {
+                    check(worker, node, channel);
+                } catch (RuntimeException ex) {
+                    logger.log(Level.WARNING, "Health check of " + worker.getName() + " on " + node.getDisplayName() + " failed", ex);
+                } finally {
+                    // a successful check replaces the stale result, a failed
+                    // one is retried with the next lookup
+                    stale.endRefresh();
+                }
+            }
+        });
+    }
+
+    static void invalidate(VirtualChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        synchronized (cache) {
+            cache.remove(channel);
+        }
+    }
+
+    /**
+     * Outcome of one health check.
+     */
+    public static final class Result {
+
+        private final String worker;
+        private final boolean healthy;
+        private final long checked;
+        private final long duration;
+        private boolean refreshing;
+
+        Result(String worker, boolean healthy, long checked, long duration) {
+            this.worker = worker;
+            this.healthy = healthy;
+            this.checked = checked;
+            this.duration = duration;
+        }
+
+        public String getWorker() {
+            return worker;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        /**
+         * Time of the check in milliseconds since the epoch.
+         */
+        public long getChecked() {
+            return checked;
+        }
+
+        /**
+         * How long the check took in milliseconds.
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        public long getAge() {
+            return System.currentTimeMillis() - checked;
+        }
+
+        private synchronized boolean startRefresh() {
+            if (refreshing) {
+                return false;
+            }
+            refreshing = true;
+            return true;
+        }
+
+        private synchronized void endRefresh() {
+            refreshing = false;
+        }
+    }
+}
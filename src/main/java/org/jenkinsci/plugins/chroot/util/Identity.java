@@ -0,0 +1,130 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.Launcher;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ArgumentListBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * User and group the agent process runs as.
+ *
+ * All values are probed with a single process launch and cached per
+ * channel. The cache entry is dropped when the agent goes offline or
+ * reconnects.
+ *
+ * @author rmohr
+ */
+public final class Identity implements Serializable {
+
+    private static final Map<VirtualChannel, Identity> cache = new WeakHashMap<VirtualChannel, Identity>();
+    private final String userName;
+    private final int uid;
+    private final int gid;
+    private final String groupName;
+
+    public Identity(String userName, int uid, int gid, String groupName) {
+        this.userName = userName;
+        this.uid = uid;
+        this.gid = gid;
+        this.groupName = groupName;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public int getUID() {
+        return uid;
+    }
+
+    public int getGID() {
+        return gid;
+    }
+
+    public String getGroupName() {
+        return groupName;
+    }
+
+    /**
+     * Returns the identity the launcher runs processes as.
+     */
+    public static Identity of(Launcher launcher) throws IOException, InterruptedException {
+        VirtualChannel channel = launcher.getChannel();
+        synchronized (cache) {
+            Identity identity = cache.get(channel);
+            if (identity != null) {
+                return identity;
+            }
+        }
+        Identity identity = probe(launcher);
+        if (channel != null) {
+            synchronized (cache) {
+                cache.put(channel, identity);
+            }
+        }
+        return identity;
+    }
+
+    static Identity probe(Launcher launcher) throws IOException, InterruptedException {
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ArgumentListBuilder cmd = new ArgumentListBuilder().add("sh").add("-c").add("id -un; id -u; id -g; id -gn");
+        int ret = launcher.launch().cmds(cmd).stdout(stdout).join();
+        if (ret != 0) {
+            throw new IOException("Could not determine the user of the agent: " + stdout.toString().trim());
+        }
+        return parse(stdout.toString());
+    }
+
+    static Identity parse(String output) throws IOException {
+        String[] lines = output.trim().split("\\s*\n\\s*");
+        if (lines.length != 4) {
+            throw new IOException("Unexpected output of id: " + output);
+        }
+        try {
+            return new Identity(lines[0], Integer.parseInt(lines[1]), Integer.parseInt(lines[2]), lines[3]);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Unexpected output of id: " + output);
+        }
+    }
+
+    static void invalidate(VirtualChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        synchronized (cache) {
+            cache.remove(channel);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s(%d):%s(%d)", userName, uid, groupName, gid);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import com.google.common.base.Strings;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.util.LogTaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.chroot.ChrootGlobalConfiguration;
+import org.jenkinsci.plugins.chroot.tools.ChrootToolset;
+
+/**
+ * Archive of built images on the controller, so that nodes without an image,
+ * like freshly started cloud agents, fetch one instead of building it.
+ *
+ * Images are stored as
+ * &lt;toolset&gt;/&lt;platform&gt;/&lt;fingerprint&gt;/&lt;digest&gt;/&lt;image&gt;,
+ * where the platform is the key of the node architecture and distribution
+ * (see {@link Platform#getKey(String)}) and the fingerprint covers everything
+ * else which goes into the image. Every digest is a version of the image.
+ * The newest versions of every toolset and platform are kept.
+ *
+ * @author rmohr
+ */
+public final class ImageArchive {
+
+    public static final String ARCHIVE_DIR = "chroot-images";
+    private static final Logger logger = Logger.getLogger("jenkins.plugins.chroot.util.ImageArchive");
+    /**
+     * Unfinished uploads are kept this long to be resumed.
+     */
+    private static final long PARTIAL_TTL = TimeUnit.DAYS.toMillis(1);
+    private static final Set<String> uploading = new HashSet<String>();
+
+    private ImageArchive() {
+    }
+
+    public static boolean isEnabled() {
+        return ChrootGlobalConfiguration.get().getImageArchiveVersions() > 0;
+    }
+
+    public static FilePath getArchive() {
+        String dir = ChrootGlobalConfiguration.get().getImageArchiveDirectory();
+        return new FilePath(Strings.isNullOrEmpty(dir) ? new File(Jenkins.getInstance().getRootDir(), ARCHIVE_DIR) : new File(dir));
+    }
+
+    private static FilePath getPlatformDir(ChrootToolset toolset, String platform) {
+        return getArchive().child(toolset.getName()).child(platform);
+    }
+
+    /**
+     * Returns the newest archived version of the image for the current
+     * configuration of the toolset on the platform, or null if there is none.
+     */
+    public static FilePath find(ChrootToolset toolset, String platform, String imageName) throws IOException, InterruptedException {
+        return find(getPlatformDir(toolset, platform).child(toolset.getFingerprint()), imageName);
+    }
+
+    static FilePath find(FilePath versions, String imageName) throws IOException, InterruptedException {
+        FilePath newest = null;
+        for (FilePath version : list(versions)) {
+            FilePath image = version.child(imageName);
+            if (ChrootUtil.loadDigest(image) != null && image.exists()
+                    && (newest == null || image.lastModified() > newest.lastModified())) {
+                newest = image;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Fetches the newest archived version of the image into target. Returns
+     * false if there is none.
+     */
+    public static boolean fetch(ChrootToolset toolset, String platform, FilePath target, int threads, TaskListener log) throws IOException, InterruptedException {
+        if (!isEnabled()) {
+            return false;
+        }
+        FilePath image = find(toolset, platform, target.getName());
+        if (image == null) {
+            return false;
+        }
+        log.getLogger().println(String.format("Fetching version %s of %s from the image archive", image.getParent().getName(), target.getName()));
+        return ImageTransfer.fetch(image, target, ChrootUtil.loadDigest(image), threads, log);
+    }
+
+    /**
+     * Archives a node image of the platform in the background, unless the
+     * archive has a version for the current configuration of the toolset
+     * which is younger than maxAge.
+     */
+    public static void archive(final ChrootToolset toolset, String platform, final FilePath image, long maxAge) throws IOException, InterruptedException {
+        // only images with a digest, not cowbuilder trees
+        if (!isEnabled() || ChrootUtil.loadDigest(image) == null) {
+            return;
+        }
+        FilePath newest = find(toolset, platform, image.getName());
+        if (newest != null && System.currentTimeMillis() - newest.lastModified() < maxAge) {
+            return;
+        }
+        final FilePath platformDir = getPlatformDir(toolset, platform);
+        final String key = toolset.getName() + '/' + platform;
+        synchronized (uploading) {
+            if (!uploading.add(key)) {
+                return;
+            }
+        }
+        final String fingerprint = toolset.getFingerprint();
+        final int threads = Math.max(1, ChrootGlobalConfiguration.get().getPeerTransferThreads());
+        final int keep = ChrootGlobalConfiguration.get().getImageArchiveVersions();
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                TaskListener log = new LogTaskListener(logger, Level.INFO);
+                try {
+                    upload(platformDir.child(fingerprint), image, threads, log);
+                    prune(platformDir, keep, System.currentTimeMillis());
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Archiving " + image.getRemote() + " failed", ex);
+                } catch (InterruptedException ex) {
+                    logger.log(Level.WARNING, "Archiving " + image.getRemote() + " was interrupted", ex);
+                } finally {
+                    synchronized (uploading) {
+                        uploading.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    static boolean upload(FilePath versions, FilePath image, int threads, TaskListener log) throws IOException, InterruptedException {
+        String digest = ChrootUtil.loadDigest(image);
+        if (digest == null) {
+            return false;
+        }
+        FilePath target = versions.child(digest).child(image.getName());
+        if (target.exists()) {
+            return true;
+        }
+        log.getLogger().println(String.format("Archiving %s as version %s", image.getRemote(), digest));
+        return ImageTransfer.fetch(image, target, digest, threads, log);
+    }
+
+    /**
+     * Keeps the newest complete versions of a toolset on a platform over all
+     * its configurations, and unfinished uploads for a day.
+     */
+    static void prune(FilePath platformDir, int keep, long now) throws IOException, InterruptedException {
+        // the archive lives on the controller
+        List<File> complete = new ArrayList<File>();
+        for (FilePath versions : list(platformDir)) {
+            for (FilePath version : list(versions)) {
+                List<FilePath> digests = version.list("*" + ChrootUtil.MD5_SUFFIX);
+                if (!digests.isEmpty()) {
+                    complete.add(new File(digests.get(0).getRemote()));
+                } else if (now - version.lastModified() > PARTIAL_TTL) {
+                    version.deleteRecursive();
+                }
+            }
+        }
+        Collections.sort(complete, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long ma = a.lastModified();
+                long mb = b.lastModified();
+                return ma > mb ? -1 : (ma == mb ? 0 : 1);
+            }
+        });
+        for (File digest : complete.subList(Math.min(keep, complete.size()), complete.size())) {
+            new FilePath(digest.getParentFile()).deleteRecursive();
+        }
+        for (FilePath versions : list(platformDir)) {
+            if (list(versions).isEmpty()) {
+                versions.deleteRecursive();
+            }
+        }
+    }
+
+    private static List<FilePath> list(FilePath dir) throws IOException, InterruptedException {
+        return dir.isDirectory() ? dir.listDirectories() : Collections.<FilePath>emptyList();
+    }
+}
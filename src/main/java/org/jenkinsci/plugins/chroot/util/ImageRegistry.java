@@ -0,0 +1,147 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.model.Computer;
+import hudson.model.Node;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jenkins.model.Jenkins;
+
+/**
+ * Digests of the node images which the nodes published, so that other nodes
+ * can fetch an image from a peer instead of building it. Images are published
+ * per toolset and platform key (see {@link Platform#getKey(String)}), an
+ * image of another architecture or distribution is never offered.
+ *
+ * @author rmohr
+ */
+public final class ImageRegistry {
+
+    private static final Map<String, Map<String, Entry>> images = new HashMap<String, Map<String, Entry>>();
+
+    private ImageRegistry() {
+    }
+
+    private static String key(String toolset, String platform) {
+        return toolset + '\0' + platform;
+    }
+
+    /**
+     * Records that the node has an image of the toolset for the platform with
+     * the given digest.
+     */
+    public static void publish(String toolset, String platform, Node node, String digest) {
+        if (digest == null) {
+            return;
+        }
+        synchronized (images) {
+            Map<String, Entry> nodes = images.get(key(toolset, platform));
+            if (nodes == null) {
+                nodes = new HashMap<String, Entry>();
+                images.put(key(toolset, platform), nodes);
+            }
+            nodes.put(node.getNodeName(), new Entry(node.getNodeName(), digest, System.currentTimeMillis()));
+        }
+    }
+
+    public static void withdraw(String toolset, String platform, Node node) {
+        synchronized (images) {
+            Map<String, Entry> nodes = images.get(key(toolset, platform));
+            if (nodes != null) {
+                nodes.remove(node.getNodeName());
+            }
+        }
+    }
+
+    public static boolean isPublished(String toolset, String platform, Node node) {
+        synchronized (images) {
+            Map<String, Entry> nodes = images.get(key(toolset, platform));
+            return nodes != null && nodes.containsKey(node.getNodeName());
+        }
+    }
+
+    /**
+     * Returns the nodes which published an image of the toolset for the
+     * platform, most recent publication first.
+     */
+    public static List<Entry> getPeers(String toolset, String platform) {
+        List<Entry> peers;
+        synchronized (images) {
+            Map<String, Entry> nodes = images.get(key(toolset, platform));
+            if (nodes == null) {
+                return Collections.emptyList();
+            }
+            peers = new ArrayList<Entry>(nodes.values());
+        }
+        Collections.sort(peers, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.published > b.published ? -1 : (a.published == b.published ? 0 : 1);
+            }
+        });
+        return peers;
+    }
+
+    public static final class Entry {
+
+        private final String nodeName;
+        private final String digest;
+        private final long published;
+
+        Entry(String nodeName, String digest, long published) {
+            this.nodeName = nodeName;
+            this.digest = digest;
+            this.published = published;
+        }
+
+        public String getNodeName() {
+            return nodeName;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        public long getPublished() {
+            return published;
+        }
+
+        /**
+         * Returns the node if it is online, null otherwise.
+         */
+        public Node getNode() {
+            Jenkins jenkins = Jenkins.getInstance();
+            Node node = nodeName.length() == 0 ? jenkins : jenkins.getNode(nodeName);
+            if (node == null) {
+                return null;
+            }
+            Computer computer = node.toComputer();
+            return computer != null && computer.isOnline() ? node : null;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Node wide, content addressed store of chroot images.
+ *
+ * Every image is stored once per node under its digest. Workspaces reference
+ * the store entries by hardlink, so the link count of an entry doubles as its
+ * reference count. A workspace on another file system gets a plain copy of
+ * the image instead, which does not reference the store at all.
+ * pbuilder always writes a new tarball and renames it over the old one, which
+ * breaks the link instead of modifying the shared entry.
+ *
+ * @author rmohr
+ */
+public class ImageStore {
+
+    public static final String STORE_DIR = "chroot-store";
+    private static final Map<String, Object> locks = new HashMap<String, Object>();
+
+    public static FilePath getStore(Node node) {
+        return node.getRootPath().child(STORE_DIR);
+    }
+
+    /**
+     * Makes target a reference to the store entry of image, importing image
+     * into the store first if necessary.
+     */
+    public static Transfer checkout(FilePath store, FilePath image, FilePath target) throws IOException, InterruptedException {
+        return image.act(new Checkout(store.getRemote(), target.getRemote()));
+    }
+
+    /**
+     * Atomically replaces image and its digest with replacement. Checkouts
+     * of the image either see the old or the new image, and working copies
+     * which were checked out before keep the old content.
+     */
+    public static void replace(FilePath store, FilePath image, FilePath replacement) throws IOException, InterruptedException {
+        image.act(new Replace(store.getRemote(), replacement.getRemote()));
+    }
+
+    /**
+     * Returns true if image matches its digest. A mismatch is checked again
+     * under the store lock, because a concurrent replace moves the digest
+     * and the image one after the other.
+     */
+    public static boolean isIntact(FilePath store, FilePath image) throws IOException, InterruptedException {
+        return ChrootUtil.isFileIntact(image) || image.act(new Verify(store.getRemote()));
+    }
+
+    /**
+     * Removes all store entries which are not referenced any more.
+     */
+    public static int prune(FilePath store) throws IOException, InterruptedException {
+        return store.act(new Prune());
+    }
+
+    static Object lockFor(File store) {
+        synchronized (locks) {
+            String key = store.getAbsolutePath();
+            Object lock = locks.get(key);
+            if (lock == null) {
+                lock = new Object();
+                locks.put(key, lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * Hardlinks source to target, replacing target. Returns false if source
+     * and target are on different file systems.
+     */
+    static boolean link(File source, File target) throws IOException {
+        File tmp = getTmp(target);
+        tmp.delete();
+        if (!ChrootUtil.hardLink(source, tmp)) {
+            return false;
+        }
+        move(tmp, target);
+        return true;
+    }
+
+    /**
+     * Links or copies source to target. A copy is verified against the
+     * expected digest while it is written. Returns the number of bytes
+     * copied.
+     */
+    static long linkOrCopy(File source, File target, String digest) throws IOException {
+        if (link(source, target)) {
+            return 0;
+        }
+        File tmp = getTmp(target);
+        String actual = ChrootUtil.copyAndDigest(source, tmp, DigestAlgorithm.forDigest(digest));
+        if (!actual.equals(digest)) {
+            tmp.delete();
+            throw new IOException("Digest of " + source + " does not match " + digest);
+        }
+        move(tmp, target);
+        return source.length();
+    }
+
+    private static File getTmp(File target) {
+        return new File(target.getParentFile(), "." + target.getName() + ".tmp");
+    }
+
+    private static void move(File tmp, File target) throws IOException {
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("Could not move " + tmp + " to " + target);
+        }
+    }
+
+    /**
+     * Bytes copied and hashed by a checkout.
+     */
+    public static final class Transfer implements Serializable {
+
+        private final long copied;
+        private final long hashed;
+
+        Transfer(long copied, long hashed) {
+            this.copied = copied;
+            this.hashed = hashed;
+        }
+
+        public long getCopied() {
+            return copied;
+        }
+
+        public long getHashed() {
+            return hashed;
+        }
+    }
+
+    private static final class Checkout implements FileCallable<Transfer> {
+
+        private final String store;
+        private final String target;
+
+        public Checkout(String store, String target) {
+            this.store = store;
+            this.target = target;
+        }
+
+        public Transfer invoke(File image, VirtualChannel channel) throws IOException, InterruptedException {
+            FilePath _image = new FilePath(image);
+            File _store = new File(store);
+            File _target = new File(target);
+            long copied = 0;
+            long hashed = 0;
+            synchronized (lockFor(_store)) {
+                // read the digest under the lock, the image might be replaced
+                String digest = ChrootUtil.loadDigest(_image);
+                if (digest == null) {
+                    digest = DigestAlgorithm.getDefault().digest(image);
+                    hashed += image.length();
+                    ChrootUtil.writeDigest(image, digest);
+                }
+                File entry = new File(_store, digest);
+                _store.mkdirs();
+                _target.getParentFile().mkdirs();
+                if (!(entry.exists() || link(image, entry)) || !link(entry, _target)) {
+                    // a copy does not count as a reference of the entry, so
+                    // it bypasses the store instead of leaving an entry
+                    // behind which only prune ever looks at
+                    copied += linkOrCopy(image, _target, digest);
+                }
+                ChrootUtil.writeDigest(_target, digest);
+            }
+            // the working copy is a plain base image again
+            new File(_target.getParentFile(), _target.getName() + DerivedImageCache.KEY_SUFFIX).delete();
+            // copies are hashed while they are written
+            return new Transfer(copied, hashed + copied);
+        }
+    }
+
+    private static final class Replace implements FileCallable<Void> {
+
+        private final String store;
+        private final String replacement;
+
+        public Replace(String store, String replacement) {
+            this.store = store;
+            this.replacement = replacement;
+        }
+
+        public Void invoke(File image, VirtualChannel channel) throws IOException, InterruptedException {
+            File _replacement = new File(replacement);
+            synchronized (lockFor(new File(store))) {
+                for (String suffix : new String[]{ChrootUtil.MD5_SUFFIX, Fingerprint.SUFFIX, ""}) {
+                    File source = new File(_replacement.getParentFile(), _replacement.getName() + suffix);
+                    File target = new File(image.getParentFile(), image.getName() + suffix);
+                    if (source.exists() && !source.renameTo(target)) {
+                        throw new IOException("Could not move " + source + " to " + target);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Verify implements FileCallable<Boolean> {
+
+        private final String store;
+
+        public Verify(String store) {
+            this.store = store;
+        }
+
+        public Boolean invoke(File image, VirtualChannel channel) throws IOException, InterruptedException {
+            synchronized (lockFor(new File(store))) {
+                return ChrootUtil.isFileIntact(new FilePath(image));
+            }
+        }
+    }
+
+    private static final class Prune implements FileCallable<Integer> {
+
+        public Integer invoke(File store, VirtualChannel channel) throws IOException, InterruptedException {
+            int removed = 0;
+            synchronized (lockFor(store)) {
+                File[] entries = store.listFiles();
+                if (entries == null) {
+                    return removed;
+                }
+                for (File entry : entries) {
+                    if (entry.isFile() && ChrootUtil.linkCount(entry) == 1 && entry.delete()) {
+                        removed++;
+                    }
+                }
+            }
+            return removed;
+        }
+    }
+}
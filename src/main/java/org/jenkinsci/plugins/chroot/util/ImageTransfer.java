@@ -0,0 +1,325 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Copies an image between two nodes in chunks, several of them at the same
+ * time, and verifies the result against the digest of the source.
+ *
+ * The source is hardlinked first, so replacing the source image while it is
+ * transferred does not mix two versions. The target only appears under its
+ * final name together with its digest once it was verified.
+ *
+ * Chunks which arrived are recorded next to the partial target, so a failed
+ * transfer of the same image continues where it stopped. Uncompressed images
+ * are deflated on the wire.
+ *
+ * @author rmohr
+ */
+public final class ImageTransfer {
+
+    static final int CHUNK_SIZE = 8 * 1024 * 1024;
+    static final String PARTIAL_SUFFIX = ".partial";
+    static final String PROGRESS_SUFFIX = ".chunks";
+
+    private ImageTransfer() {
+    }
+
+    /**
+     * Copies source to target. Returns false if the copy does not have the
+     * expected digest.
+     */
+    public static boolean fetch(FilePath source, FilePath target, String digest, int threads, TaskListener log) throws IOException, InterruptedException {
+        return fetch(source, target, digest, threads, CHUNK_SIZE, log);
+    }
+
+    static boolean fetch(final FilePath source, FilePath target, String digest, int threads, int chunkSize, TaskListener log) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        final boolean deflate = Compression.forImage(target.getName()) == Compression.NONE;
+        final FilePath snapshot = new FilePath(source.getChannel(), source.act(new Snapshot()));
+        final FilePath partial = getPartialFile(target);
+        final String progress = getProgressFile(target).getRemote();
+        ExecutorService executor = null;
+        try {
+            long length = snapshot.length();
+            Set<Long> done = partial.act(new Resume(getProgressHeader(digest, length, chunkSize)));
+            int chunks = (int) ((length + chunkSize - 1) / chunkSize);
+            executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, chunks)), new DaemonThreadFactory());
+            List<Future<Integer>> copies = new ArrayList<Future<Integer>>(chunks);
+            for (int i = 0; i < chunks; i++) {
+                final long offset = (long) i * chunkSize;
+                final int size = (int) Math.min(chunkSize, length - offset);
+                if (done.contains(offset)) {
+                    continue;
+                }
+                copies.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() throws IOException, InterruptedException {
+                        byte[] data = snapshot.act(new ReadChunk(offset, size, deflate));
+                        partial.act(new WriteChunk(offset, size, data, deflate, progress));
+                        return data.length;
+                    }
+                }));
+            }
+            long sent = 0;
+            for (Future<Integer> copy : copies) {
+                sent += copy.get();
+            }
+            if (!partial.act(new Install(target.getRemote(), digest, progress))) {
+                log.error(String.format("%s does not match the digest of %s, discarding it", target.getRemote(), source.getRemote()));
+                return false;
+            }
+            long duration = Math.max(1, System.currentTimeMillis() - start);
+            log.getLogger().println(String.format("Fetched %d MB in %d chunks with %d threads in %d ms (%d MB/s), %d chunks resumed, %d MB sent",
+                    length / (1024 * 1024), chunks, Math.min(threads, chunks), duration, length * 1000 / duration / (1024 * 1024),
+                    done.size(), sent / (1024 * 1024)));
+            return true;
+        } catch (ExecutionException ex) {
+            // the partial file is kept to resume the transfer
+            throw new IOException(ex.getCause().getMessage(), ex.getCause());
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            snapshot.delete();
+        }
+    }
+
+    static FilePath getPartialFile(FilePath target) {
+        return new FilePath(target.getParent(), target.getName() + PARTIAL_SUFFIX);
+    }
+
+    static FilePath getProgressFile(FilePath target) {
+        return new FilePath(target.getParent(), target.getName() + PARTIAL_SUFFIX + PROGRESS_SUFFIX);
+    }
+
+    /**
+     * Returns the first line of the progress file, which tells which image
+     * the partial file belongs to.
+     */
+    static String getProgressHeader(String digest, long length, int chunkSize) {
+        return String.format("%s %d %d", digest, length, chunkSize);
+    }
+
+    /**
+     * Hardlinks the image to a temporary name, or copies it if hardlinks are
+     * not supported, and returns the new path.
+     */
+    private static final class Snapshot implements FileCallable<String> {
+
+        public String invoke(File image, VirtualChannel channel) throws IOException, InterruptedException {
+            File snapshot = File.createTempFile("." + image.getName(), ".transfer", image.getParentFile());
+            snapshot.delete();
+            if (!ChrootUtil.hardLink(image, snapshot)) {
+                ChrootUtil.copyAndDigest(image, snapshot, DigestAlgorithm.MD5);
+            }
+            return snapshot.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Returns the offsets of the chunks a previous transfer of the same image
+     * already wrote, or starts a new partial file.
+     */
+    private static final class Resume implements FileCallable<Set<Long>> {
+
+        private final String header;
+
+        Resume(String header) {
+            this.header = header;
+        }
+
+        public Set<Long> invoke(File file, VirtualChannel channel) throws IOException, InterruptedException {
+            File progress = new File(file.getPath() + PROGRESS_SUFFIX);
+            long length = Long.parseLong(header.split(" ")[1]);
+            Set<Long> done = new HashSet<Long>();
+            if (file.isFile() && file.length() == length && progress.isFile()) {
+                List<String> lines = FileUtils.readLines(progress);
+                if (!lines.isEmpty() && lines.get(0).equals(header)) {
+                    for (String line : lines.subList(1, lines.size())) {
+                        // a line may be cut off by a crash
+                        if (line.endsWith(";")) {
+                            done.add(Long.parseLong(line.substring(0, line.length() - 1)));
+                        }
+                    }
+                    return done;
+                }
+            }
+            file.getParentFile().mkdirs();
+            FileUtils.writeStringToFile(progress, header + "\n");
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                out.setLength(length);
+            } finally {
+                out.close();
+            }
+            return done;
+        }
+    }
+
+    private static final class ReadChunk implements FileCallable<byte[]> {
+
+        private final long offset;
+        private final int size;
+        private final boolean deflate;
+
+        ReadChunk(long offset, int size, boolean deflate) {
+            this.offset = offset;
+            this.size = size;
+            this.deflate = deflate;
+        }
+
+        public byte[] invoke(File file, VirtualChannel channel) throws IOException, InterruptedException {
+            byte[] data = new byte[size];
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                in.seek(offset);
+                in.readFully(data);
+            } finally {
+                in.close();
+            }
+            if (!deflate) {
+                return data;
+            }
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(size / 2);
+                byte[] buffer = new byte[64 * 1024];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    private static final class WriteChunk implements FileCallable<Void> {
+
+        private final long offset;
+        private final int size;
+        private final byte[] data;
+        private final boolean deflated;
+        private final String progress;
+
+        WriteChunk(long offset, int size, byte[] data, boolean deflated, String progress) {
+            this.offset = offset;
+            this.size = size;
+            this.data = data;
+            this.deflated = deflated;
+            this.progress = progress;
+        }
+
+        public Void invoke(File file, VirtualChannel channel) throws IOException, InterruptedException {
+            byte[] chunk = data;
+            if (deflated) {
+                chunk = new byte[size];
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(data);
+                    if (inflater.inflate(chunk) != size || !inflater.finished()) {
+                        throw new IOException("Chunk at " + offset + " was damaged in transfer");
+                    }
+                } catch (DataFormatException ex) {
+                    throw new IOException("Chunk at " + offset + " was damaged in transfer", ex);
+                } finally {
+                    inflater.end();
+                }
+            }
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                out.seek(offset);
+                out.write(chunk);
+            } finally {
+                out.close();
+            }
+            synchronized (WriteChunk.class) {
+                FileOutputStream log = new FileOutputStream(progress, true);
+                try {
+                    log.write((offset + ";\n").getBytes("US-ASCII"));
+                } finally {
+                    log.close();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Verifies the transferred file and moves it to the target together
+     * with its digest.
+     */
+    private static final class Install implements FileCallable<Boolean> {
+
+        private final String target;
+        private final String digest;
+        private final String progress;
+
+        Install(String target, String digest, String progress) {
+            this.target = target;
+            this.digest = digest;
+            this.progress = progress;
+        }
+
+        public Boolean invoke(File file, VirtualChannel channel) throws IOException, InterruptedException {
+            new File(progress).delete();
+            if (!DigestAlgorithm.forDigest(digest).digest(file).equals(digest)) {
+                file.delete();
+                return false;
+            }
+            File image = new File(target);
+            if (!file.renameTo(image)) {
+                throw new IOException("Could not rename " + file + " to " + image);
+            }
+            ChrootUtil.writeDigest(image, digest);
+            return true;
+        }
+    }
+}
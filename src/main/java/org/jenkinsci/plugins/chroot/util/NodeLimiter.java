@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.Util;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.chroot.ChrootGlobalConfiguration;
+
+/**
+ * Limits the number of chroot environments which are set up on a node at
+ * the same time. Waiting builds are admitted in order of arrival.
+ *
+ * @author rmohr
+ */
+public final class NodeLimiter {
+
+    private static final Map<String, Limit> limits = new HashMap<String, Limit>();
+
+    private NodeLimiter() {
+    }
+
+    /**
+     * Waits until the node admits another setup. The returned permit has to
+     * be released when the setup is done.
+     */
+    public static Permit acquire(Node node, TaskListener listener) throws InterruptedException {
+        return acquire(getLimit(node), node.getDisplayName(), listener);
+    }
+
+    static Permit acquire(Limit limit, String nodeName, TaskListener listener) throws InterruptedException {
+        if (limit == null) {
+            return new Permit(null);
+        }
+        long start = System.currentTimeMillis();
+        // unlike tryAcquire(), a timed tryAcquire does not barge ahead of waiting setups
+        if (!limit.semaphore.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+            listener.getLogger().println(String.format("Waiting for one of %d chroot setup slots on %s",
+                    limit.permits, nodeName));
+            limit.semaphore.acquire();
+            listener.getLogger().println(String.format("Waited %s for a chroot setup slot",
+                    Util.getTimeSpanString(System.currentTimeMillis() - start)));
+        }
+        return new Permit(limit);
+    }
+
+    /**
+     * Returns the occupancy of the node, or null if setups are not limited.
+     */
+    public static Occupancy getOccupancy(Node node) {
+        Limit limit = getLimit(node);
+        return limit == null ? null : limit.getOccupancy();
+    }
+
+    private static Limit getLimit(Node node) {
+        int permits = ChrootGlobalConfiguration.get().getSetupConcurrencyPerNode();
+        if (permits == 0) {
+            return null;
+        }
+        synchronized (limits) {
+            Limit limit = limits.get(node.getNodeName());
+            // running setups release the permit to the limit they acquired it from
+            if (limit == null || limit.permits != permits) {
+                limit = new Limit(permits);
+                limits.put(node.getNodeName(), limit);
+            }
+            return limit;
+        }
+    }
+
+    static final class Limit {
+
+        private final int permits;
+        private final Semaphore semaphore;
+
+        Limit(int permits) {
+            this.permits = permits;
+            this.semaphore = new Semaphore(permits, true);
+        }
+
+        Occupancy getOccupancy() {
+            return new Occupancy(permits - semaphore.availablePermits(), permits, semaphore.getQueueLength());
+        }
+    }
+
+    public static final class Permit {
+
+        private Limit limit;
+
+        Permit(Limit limit) {
+            this.limit = limit;
+        }
+
+        public synchronized void release() {
+            if (limit != null) {
+                limit.semaphore.release();
+                limit = null;
+            }
+        }
+    }
+
+    public static final class Occupancy {
+
+        private final int running;
+        private final int slots;
+        private final int waiting;
+
+        Occupancy(int running, int slots, int waiting) {
+            this.running = running;
+            this.slots = slots;
+            this.waiting = waiting;
+        }
+
+        public int getRunning() {
+            return running;
+        }
+
+        public int getSlots() {
+            return slots;
+        }
+
+        public int getWaiting() {
+            return waiting;
+        }
+    }
+}
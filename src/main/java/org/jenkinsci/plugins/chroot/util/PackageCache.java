@@ -0,0 +1,291 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Node wide cache of downloaded packages which is shared by all chroot
+ * environments of a worker.
+ *
+ * The cache is shared by toolsets of different architectures and
+ * distributions, so packages are told apart by name and architecture, and the
+ * newest {@link #VERSIONS} versions of each are kept. When the cache exceeds
+ * its quota, the packages which were used least recently are removed. pbuilder
+ * hardlinks the cache into the chroot, so installing a package updates the
+ * access time of the cached file.
+ *
+ * @author rmohr
+ */
+public class PackageCache {
+
+    public static final String CACHE_DIR = "chroot-cache";
+    /**
+     * Versions kept per package and architecture, enough for toolsets of a
+     * few distributions.
+     */
+    static final int VERSIONS = 3;
+    private static final Map<String, Statistics> statistics = new HashMap<String, Statistics>();
+
+    public static FilePath getCache(Node node, String worker) {
+        return node.getRootPath().child(CACHE_DIR).child(worker);
+    }
+
+    /**
+     * Returns the names of all cached packages.
+     */
+    public static Set<String> snapshot(FilePath cache) throws IOException, InterruptedException {
+        cache.mkdirs();
+        return cache.act(new Snapshot(false));
+    }
+
+    /**
+     * Returns the paths of all packages below a cache which is managed by
+     * the package manager itself, like the yum and dnf caches of mock.
+     */
+    public static Set<String> snapshotTree(FilePath cache) throws IOException, InterruptedException {
+        return cache.isDirectory() ? cache.act(new Snapshot(true)) : Collections.<String>emptySet();
+    }
+
+    /**
+     * Counts the packages which were added below a cache managed by the
+     * package manager since the snapshot was taken, without trimming it.
+     */
+    public static void record(FilePath cache, Set<String> snapshot, String toolset) throws IOException, InterruptedException {
+        long count = 0;
+        long bytes = 0;
+        if (cache.isDirectory()) {
+            Set<String> current = cache.act(new Snapshot(true));
+            for (String path : current) {
+                if (!snapshot.contains(path)) {
+                    count++;
+                    bytes += cache.child(path).length();
+                }
+            }
+        }
+        getStatistics(toolset).record(count, bytes);
+    }
+
+    /**
+     * Counts the packages which were downloaded since the snapshot was taken
+     * and shrinks the cache to the quota afterwards.
+     */
+    public static void update(FilePath cache, Set<String> snapshot, String toolset, long quota) throws IOException, InterruptedException {
+        long[] downloaded = cache.act(new Trim(snapshot, quota));
+        getStatistics(toolset).record(downloaded[0], downloaded[1]);
+    }
+
+    public static Statistics getStatistics(String toolset) {
+        synchronized (statistics) {
+            Statistics s = statistics.get(toolset);
+            if (s == null) {
+                s = new Statistics();
+                statistics.put(toolset, s);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Returns the name and architecture of a package file, name_version_arch.deb
+     * or name-version-release.arch.rpm.
+     */
+    static String getPackageKey(File file) {
+        String name = file.getName();
+        if (name.endsWith(".deb")) {
+            String[] parts = name.substring(0, name.length() - 4).split("_");
+            return parts.length == 3 ? parts[0] + "_" + parts[2] : name;
+        }
+        if (name.endsWith(".rpm")) {
+            String base = name.substring(0, name.length() - 4);
+            int arch = base.lastIndexOf('.');
+            int release = base.lastIndexOf('-');
+            int version = release > 0 ? base.lastIndexOf('-', release - 1) : -1;
+            return arch > release && version > 0 ? base.substring(0, version) + "." + base.substring(arch + 1) : name;
+        }
+        return name;
+    }
+
+    private static List<File> listPackages(File dir, boolean recursive, List<File> packages) {
+        File[] files = dir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isDirectory() || file.getName().endsWith(".deb") || file.getName().endsWith(".rpm");
+            }
+        });
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    packages.add(file);
+                } else if (recursive && file.isDirectory()) {
+                    listPackages(file, recursive, packages);
+                }
+            }
+        }
+        return packages;
+    }
+
+    private static final class Snapshot implements FileCallable<Set<String>> {
+
+        private final boolean recursive;
+
+        public Snapshot(boolean recursive) {
+            this.recursive = recursive;
+        }
+
+        public Set<String> invoke(File cache, VirtualChannel channel) throws IOException, InterruptedException {
+            Set<String> names = new HashSet<String>();
+            String root = cache.getPath() + File.separator;
+            for (File deb : listPackages(cache, recursive, new ArrayList<File>())) {
+                names.add(deb.getPath().substring(root.length()));
+            }
+            return names;
+        }
+    }
+
+    private static final class Trim implements FileCallable<long[]> {
+
+        private final Set<String> snapshot;
+        private final long quota;
+
+        public Trim(Set<String> snapshot, long quota) {
+            this.snapshot = snapshot;
+            this.quota = quota;
+        }
+
+        public long[] invoke(File cache, VirtualChannel channel) throws IOException, InterruptedException {
+            long count = 0;
+            long bytes = 0;
+            List<File> packages = listPackages(cache, false, new ArrayList<File>());
+            // newest versions first
+            sort(packages, false);
+            Map<String, Integer> versions = new HashMap<String, Integer>();
+            List<File> kept = new ArrayList<File>();
+            for (File deb : packages) {
+                if (!snapshot.contains(deb.getName())) {
+                    count++;
+                    bytes += deb.length();
+                }
+                String key = getPackageKey(deb);
+                Integer newer = versions.get(key);
+                versions.put(key, newer == null ? 1 : newer + 1);
+                if (newer != null && newer >= VERSIONS) {
+                    // an older version of a package we already have often enough
+                    deb.delete();
+                } else {
+                    kept.add(deb);
+                }
+            }
+            if (quota > 0) {
+                // most recently used first
+                sort(kept, true);
+                long size = 0;
+                for (File deb : kept) {
+                    if (size + deb.length() > quota) {
+                        deb.delete();
+                    } else {
+                        size += deb.length();
+                    }
+                }
+            }
+            return new long[]{count, bytes};
+        }
+
+        private static void sort(List<File> packages, final boolean byUse) {
+            final Map<File, Long> times = new HashMap<File, Long>();
+            for (File deb : packages) {
+                times.put(deb, byUse ? ChrootUtil.lastUsed(deb) : deb.lastModified());
+            }
+            Collections.sort(packages, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    long ma = times.get(a);
+                    long mb = times.get(b);
+                    return ma > mb ? -1 : (ma == mb ? 0 : 1);
+                }
+            });
+        }
+    }
+
+    /**
+     * Download statistics of a toolset. A run which did not have to download
+     * any package counts as a cache hit.
+     */
+    public static final class Statistics implements Serializable {
+
+        private long hits;
+        private long misses;
+        private long packages;
+        private long bytes;
+
+        synchronized void record(long downloaded, long downloadedBytes) {
+            if (downloaded == 0) {
+                hits++;
+            } else {
+                misses++;
+            }
+            packages += downloaded;
+            bytes += downloadedBytes;
+        }
+
+        public synchronized long getHits() {
+            return hits;
+        }
+
+        public synchronized long getMisses() {
+            return misses;
+        }
+
+        public synchronized long getPackages() {
+            return packages;
+        }
+
+        public synchronized long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public synchronized String toString() {
+            long runs = hits + misses;
+            if (runs == 0) {
+                return "no package downloads recorded yet";
+            }
+            return String.format("%d of %d runs served from cache (%d%%), %d packages (%d MB) downloaded",
+                    hits, runs, hits * 100 / runs, packages, bytes / (1024 * 1024));
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import com.google.common.base.Strings;
+import hudson.Launcher;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.QuotedStringTokenizer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Architecture of an agent and the distribution pbuilder creates images of
+ * by default, which together decide whether an image built on one node works
+ * on another.
+ *
+ * Like the {@link Identity}, the values are probed once and cached per
+ * channel until the agent goes offline or reconnects.
+ *
+ * @author rmohr
+ */
+public final class Platform {
+
+    private static final Map<VirtualChannel, Platform> cache = new WeakHashMap<VirtualChannel, Platform>();
+    private static final String PROBE = "dpkg --print-architecture 2>/dev/null || uname -m\n"
+            + "for rc in /usr/share/pbuilder/pbuilderrc /etc/pbuilderrc; do\n"
+            + "    if [ -r \"$rc\" ]; then . \"$rc\" > /dev/null 2>&1; fi\n"
+            + "done\n"
+            + "echo \"${DISTRIBUTION:-$(lsb_release -cs 2>/dev/null)}\"\n";
+    private final String architecture;
+    private final String distribution;
+
+    public Platform(String architecture, String distribution) {
+        this.architecture = architecture;
+        this.distribution = distribution;
+    }
+
+    public String getArchitecture() {
+        return architecture;
+    }
+
+    public String getDistribution() {
+        return distribution;
+    }
+
+    /**
+     * Returns the platform of the node the launcher runs processes on.
+     */
+    public static Platform of(Launcher launcher) throws IOException, InterruptedException {
+        VirtualChannel channel = launcher.getChannel();
+        synchronized (cache) {
+            Platform platform = cache.get(channel);
+            if (platform != null) {
+                return platform;
+            }
+        }
+        Platform platform = probe(launcher);
+        if (channel != null) {
+            synchronized (cache) {
+                cache.put(channel, platform);
+            }
+        }
+        return platform;
+    }
+
+    static Platform probe(Launcher launcher) throws IOException, InterruptedException {
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ArgumentListBuilder cmd = new ArgumentListBuilder().add("bash").add("-c").add(PROBE);
+        launcher.launch().cmds(cmd).stdout(stdout).join();
+        return parse(stdout.toString());
+    }
+
+    static Platform parse(String output) throws IOException {
+        String[] lines = output.trim().split("\\s*\n\\s*");
+        if (lines[0].length() == 0) {
+            throw new IOException("Could not determine the architecture of the agent");
+        }
+        return new Platform(lines[0], lines.length > 1 ? lines[1] : "");
+    }
+
+    /**
+     * Returns a key which identifies images of a toolset with the given setup
+     * arguments on this platform. The distribution is only part of it if
+     * the arguments do not select one.
+     */
+    public String getKey(String setupArguments) {
+        boolean pinned = false;
+        for (String argument : QuotedStringTokenizer.tokenize(Strings.nullToEmpty(setupArguments))) {
+            pinned |= argument.equals("--distribution") || argument.startsWith("--distribution=");
+        }
+        String key = pinned || distribution.length() == 0 ? architecture : architecture + "-" + distribution;
+        return key.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    static void invalidate(VirtualChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        synchronized (cache) {
+            cache.remove(channel);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return architecture + "/" + distribution;
+    }
+}
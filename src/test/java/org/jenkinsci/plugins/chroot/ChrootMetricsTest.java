@@ -0,0 +1,41 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot;
+
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ *
+ * @author rmohr
+ */
+public class ChrootMetricsTest {
+
+    @Test
+    public void testBuckets() {
+        ChrootMetrics.Histogram histogram = new ChrootMetrics.Histogram("toolset", "node", "setup");
+        assertThat(histogram.getBuckets()).isEqualTo(new long[]{0, 0, 0, 0, 0, 0, 0, 0});
+        assertThat(histogram.getMin()).isEqualTo(0);
+        assertThat(histogram.getMean()).isEqualTo(0);
+
+        // a duration on a bound belongs to that bucket
+        histogram.add(0);
+        histogram.add(1000);
+        histogram.add(1001);
+        histogram.add(60000);
+        histogram.add(60001);
+        histogram.add(3600001);
+        assertThat(histogram.getBuckets()).isEqualTo(new long[]{2, 1, 0, 1, 1, 0, 0, 1});
+        assertThat(histogram.getCount()).isEqualTo(6);
+        assertThat(histogram.getMin()).isEqualTo(0);
+        assertThat(histogram.getMax()).isEqualTo(3600001);
+        assertThat(histogram.getMean()).isEqualTo(3722003 / 6);
+
+        // the buckets are a copy
+        histogram.getBuckets()[0] = 42;
+        assertThat(histogram.getBuckets()[0]).isEqualTo(2);
+    }
+}
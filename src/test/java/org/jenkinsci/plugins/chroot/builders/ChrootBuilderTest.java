@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.builders;
+
+import hudson.FilePath;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.tools.InstallSourceProperty;
+import hudson.tools.ToolProperty;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.jenkinsci.plugins.chroot.extensions.ChrootWorker;
+import org.jenkinsci.plugins.chroot.extensions.PBuilderWorker;
+import org.jenkinsci.plugins.chroot.harness.FakeChrootTool;
+import org.jenkinsci.plugins.chroot.tools.ChrootCreator;
+import org.jenkinsci.plugins.chroot.tools.ChrootToolset;
+import org.jenkinsci.plugins.chroot.util.DerivedImageCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ *
+ * @author rmohr
+ */
+public class ChrootBuilderTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private FakeChrootTool tool;
+
+    @Before
+    public void setUp() throws Exception {
+        tool = new FakeChrootTool(folder.getRoot(), 1, 0, 0, 0, 0);
+        System.setProperty(PBuilderWorker.class.getName() + ".tool", tool.getScript().getAbsolutePath());
+        System.setProperty(ChrootWorker.SUDO_PROPERTY, "env");
+        List<ToolProperty<?>> properties = new ArrayList<ToolProperty<?>>();
+        properties.add(new InstallSourceProperty(Collections.singletonList(new ChrootCreator(null))));
+        j.jenkins.getDescriptorByType(ChrootToolset.DescriptorImpl.class)
+                .setInstallations(new ChrootToolset("fake", "", "pbuilder", properties));
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(PBuilderWorker.class.getName() + ".tool");
+        System.clearProperty(ChrootWorker.SUDO_PROPERTY);
+    }
+
+    private FreeStyleBuild build(String packages) throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getBuildersList().add(new ChrootBuilder("fake", false, packages, "", false, "true", false, false, false));
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        assertThat(build.getResult()).isEqualTo(Result.SUCCESS);
+        return build;
+    }
+
+    @Test
+    public void testDerivedImageIsNotUpdated() throws Exception {
+        build("wget");
+        tool.reset();
+
+        // another workspace gets the cached image with wget installed
+        FreeStyleBuild build = build("wget");
+        assertThat(build.getAction(ChrootBuildAction.class).getCacheHits()).isEqualTo(1);
+        for (String call : tool.getCalls()) {
+            assertThat(call).doesNotContain("--update");
+        }
+    }
+
+    @Test
+    public void testDerivedImageFromNodeImage() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getBuildersList().add(new ChrootBuilder("fake", false, "wget", "", false, "true", false, false, false));
+        j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+        String wget = DerivedImageCache.loadKey(project.getSomeWorkspace().child("fake").child("fake.tgz"));
+
+        // the working copy has wget installed, curl is installed into a
+        // fresh copy of the node image
+        project.getBuildersList().replace(new ChrootBuilder("fake", false, "curl", "", false, "true", false, false, false));
+        tool.reset();
+        j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+        assertThat(tool.getCalls()).contains("--update install");
+        FilePath workingCopy = project.getSomeWorkspace().child("fake").child("fake.tgz");
+        assertThat(DerivedImageCache.loadKey(workingCopy)).isNotNull().isNotEqualTo(wget);
+        assertThat(workingCopy.readToString()).contains("curl").doesNotContain("wget");
+    }
+}
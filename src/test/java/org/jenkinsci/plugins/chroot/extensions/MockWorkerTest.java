@@ -23,6 +23,11 @@
  */
 package org.jenkinsci.plugins.chroot.extensions;
 
+import hudson.FilePath;
+import java.io.File;
+import java.util.Arrays;
+import org.jenkinsci.plugins.chroot.tools.ChrootToolsetProperty;
+import org.jenkinsci.plugins.chroot.tools.Repository;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -69,5 +74,58 @@ public class MockWorkerTest {
     public void testCommandInChroot(){
         
     }
+
+    @Test
+    public void testOverrides() {
+        String cfg = MockWorker.getOverrides("fedora", new FilePath(new File("/build")),
+                new FilePath(new File("/cache")), new FilePath(new File("/packages")), new FilePath(new File("/workspace")));
+        assertTrue(cfg.contains("config_opts['root'] = 'fedora'\n"));
+        assertTrue(cfg.contains("config_opts['basedir'] = '/build'\n"));
+        assertTrue(cfg.contains("config_opts['cache_topdir'] = '/cache'\n"));
+        assertTrue(cfg.contains("config_opts['plugin_conf']['root_cache_enable'] = True\n"));
+        assertTrue(cfg.contains("config_opts['plugin_conf']['dnf_cache_opts']['dir'] = '/packages/dnf_cache/'\n"));
+        assertTrue(cfg.contains("('/workspace', '/workspace')"));
+        assertFalse(MockWorker.getOverrides("fedora", new FilePath(new File("/build")),
+                new FilePath(new File("/cache")), new FilePath(new File("/packages")), null).contains("bind_mount"));
+    }
+
+    @Test
+    public void testConfig() {
+        String overrides = MockWorker.getOverrides("fedora", new FilePath(new File("/build")),
+                new FilePath(new File("/cache")), new FilePath(new File("/packages")), null);
+        String cfg = MockWorker.getConfig(new FilePath(new File("/mock/fedora")), "config_opts['chroot_setup_cmd'] += ' gcc'\n", overrides);
+        int defaults = cfg.indexOf("include('/etc/mock/default.cfg')\n");
+        assertTrue(defaults > cfg.indexOf("config_opts['config_path'] = '/etc/mock'\n"));
+        assertTrue(cfg.indexOf("config_opts['config_path'] = '/mock/fedora'\n") > defaults);
+        assertTrue(cfg.indexOf("config_opts['chroot_setup_cmd'] += ' gcc'\n") > defaults);
+        assertTrue(cfg.indexOf("config_opts['root'] = 'fedora'\n") > defaults);
+        assertTrue(cfg.endsWith(overrides));
+    }
+
+    @Test
+    public void testUnsignedConfig() {
+        assertTrue(MockWorker.getUnsignedConfig().contains("config_opts['dnf.conf'] = config_opts['dnf.conf'].replace('gpgcheck=1', 'gpgcheck=0')\n"));
+    }
+
+    @Test
+    public void testToolsetConfig() {
+        ChrootToolsetProperty property = new ChrootToolsetProperty("", "gcc make", "", "",
+                Arrays.asList(new Repository("http://example.com/repo", "http://example.com/key", "example")));
+        String cfg = MockWorker.getToolsetConfig(property);
+        assertTrue(cfg.contains("config_opts['chroot_setup_cmd'] += ' gcc make'\n"));
+        assertTrue(cfg.contains("[example]\nname=example\nbaseurl=http://example.com/repo\nenabled=1\ngpgcheck=1\ngpgkey=http://example.com/key\n"));
+        assertEquals("", MockWorker.getToolsetConfig(null));
+    }
+
+    @Test
+    public void testVersion() {
+        ChrootToolsetProperty property = new ChrootToolsetProperty("", "gcc", "", "", null);
+        String version = MockWorker.getVersion("config_opts['root'] = 'fedora'", property);
+        assertEquals(12, version.length());
+        assertEquals(version, MockWorker.getVersion("config_opts['root'] = 'fedora'", new ChrootToolsetProperty("", "gcc", "", "", null)));
+        assertFalse(version.equals(MockWorker.getVersion("config_opts['root'] = 'centos'", property)));
+        assertFalse(version.equals(MockWorker.getVersion("config_opts['root'] = 'fedora'", new ChrootToolsetProperty("", "gcc make", "", "", null))));
+        assertFalse(version.equals(MockWorker.getVersion("config_opts['root'] = 'fedora'", new ChrootToolsetProperty("make", "gcc", "", "", null))));
+    }
     
 }
\ No newline at end of file
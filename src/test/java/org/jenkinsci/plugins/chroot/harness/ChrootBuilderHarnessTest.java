@@ -0,0 +1,162 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.harness;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.tools.InstallSourceProperty;
+import hudson.tools.ToolProperty;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+import org.apache.commons.io.FileUtils;
+import org.jenkinsci.plugins.chroot.builders.ChrootBuildAction;
+import org.jenkinsci.plugins.chroot.builders.ChrootBuilder;
+import org.jenkinsci.plugins.chroot.extensions.ChrootWorker;
+import org.jenkinsci.plugins.chroot.extensions.MockWorker;
+import org.jenkinsci.plugins.chroot.extensions.PBuilderWorker;
+import org.jenkinsci.plugins.chroot.tools.ChrootCreator;
+import org.jenkinsci.plugins.chroot.tools.ChrootToolset;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Drives pbuilder and mock builds end to end against {@link FakeChrootTool}
+ * and reports per-phase latencies, throughput and bytes written for
+ * increasing numbers of concurrent builds on one node.
+ *
+ * Only runs with -Dchroot.harness=true. The concurrency levels can be set
+ * with -Dchroot.harness.concurrency=1,4,16.
+ *
+ * @author rmohr
+ */
+public class ChrootBuilderHarnessTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private FakeChrootTool tool;
+
+    @BeforeClass
+    public static void enabled() {
+        Assume.assumeTrue(Boolean.getBoolean("chroot.harness"));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        tool = new FakeChrootTool(folder.getRoot(), 64, 500, 1000, 2000, 200);
+        System.setProperty(PBuilderWorker.class.getName() + ".tool", tool.getScript().getAbsolutePath());
+        System.setProperty(MockWorker.class.getName() + ".tool", tool.getScript().getAbsolutePath());
+        System.setProperty(ChrootWorker.SUDO_PROPERTY, "env");
+        // mock chroots are based on the default configuration of the node
+        File configPath = folder.newFolder("mock");
+        FileUtils.writeStringToFile(new File(configPath, "default.cfg"), "config_opts['root'] = 'fake'\n");
+        FileUtils.writeStringToFile(new File(configPath, "logging.ini"), "");
+        System.setProperty(MockWorker.class.getName() + ".configPath", configPath.getAbsolutePath());
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(PBuilderWorker.class.getName() + ".tool");
+        System.clearProperty(MockWorker.class.getName() + ".tool");
+        System.clearProperty(MockWorker.class.getName() + ".configPath");
+        System.clearProperty(ChrootWorker.SUDO_PROPERTY);
+    }
+
+    @Test
+    public void testConcurrentPBuilderBuilds() throws Exception {
+        measure("pbuilder");
+    }
+
+    @Test
+    public void testConcurrentMockBuilds() throws Exception {
+        measure("mock");
+    }
+
+    private void measure(String worker) throws Exception {
+        List<ToolProperty<?>> properties = new ArrayList<ToolProperty<?>>();
+        properties.add(new InstallSourceProperty(Collections.singletonList(new ChrootCreator(null))));
+        j.jenkins.getDescriptorByType(ChrootToolset.DescriptorImpl.class)
+                .setInstallations(new ChrootToolset("fake", "", worker, properties));
+        String levels = System.getProperty("chroot.harness.concurrency", "1,4,16");
+        int max = 0;
+        for (String level : levels.split(",")) {
+            max = Math.max(max, Integer.parseInt(level.trim()));
+        }
+        j.jenkins.setNumExecutors(max);
+
+        // create the node image outside of the measurement
+        run(1, worker + " warmup");
+        for (String level : levels.split(",")) {
+            run(Integer.parseInt(level.trim()), worker + " concurrency " + level.trim());
+        }
+    }
+
+    private void run(int builds, String label) throws Exception {
+        tool.reset();
+        List<Future<FreeStyleBuild>> futures = new ArrayList<Future<FreeStyleBuild>>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < builds; i++) {
+            FreeStyleProject project = j.createFreeStyleProject();
+            project.getBuildersList().add(new ChrootBuilder("fake", false, "", "", false, "true", false, false, false));
+            futures.add(project.scheduleBuild2(0));
+        }
+        Map<String, long[]> phases = new TreeMap<String, long[]>();
+        for (Future<FreeStyleBuild> future : futures) {
+            FreeStyleBuild build = future.get();
+            assertThat(build.getResult()).isEqualTo(Result.SUCCESS);
+            for (ChrootBuildAction.Phase phase : build.getAction(ChrootBuildAction.class).getPhases()) {
+                long[] stats = phases.get(phase.getName());
+                if (stats == null) {
+                    stats = new long[3];
+                    phases.put(phase.getName(), stats);
+                }
+                stats[0]++;
+                stats[1] += phase.getDuration();
+                stats[2] = Math.max(stats[2], phase.getDuration());
+            }
+        }
+        long duration = System.currentTimeMillis() - start;
+        System.out.println(String.format("== %s: %d builds in %d ms, %.1f builds/min, %d MB written",
+                label, builds, duration, builds * 60000.0 / duration, tool.getBytesWritten() / (1024 * 1024)));
+        for (Map.Entry<String, long[]> entry : phases.entrySet()) {
+            long[] stats = entry.getValue();
+            System.out.println(String.format("   %-8s mean %6d ms  max %6d ms", entry.getKey(), stats[1] / stats[0], stats[2]));
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2013, Roman Mohr <roman@fenkhuber.at>
+ *
+ *  This file is part of Chroot-plugin.
+ *
+ *  Chroot-plugin is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Chroot-plugin is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Chroot-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.harness;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Stand-in for pbuilder, cowbuilder and mock which needs neither root nor
+ * network access. It sleeps for the configured costs, writes images of the
+ * configured size and records every byte it writes.
+ *
+ * @author rmohr
+ */
+public class FakeChrootTool {
+
+    private final File script;
+    private final File log;
+    private final File calls;
+
+    /**
+     * @param dir directory the script and its log are created in
+     * @param imageMb size of created images
+     * @param unpackMs cost of unpacking an image
+     * @param packMs cost of packing an image
+     * @param updateMs cost of updating or installing packages
+     * @param buildMs cost of the build command
+     */
+    public FakeChrootTool(File dir, int imageMb, int unpackMs, int packMs, int updateMs, int buildMs) throws IOException {
+        this.script = new File(dir, "fake-chroot-tool");
+        this.log = new File(dir, "fake-chroot-tool.log");
+        this.calls = new File(dir, "fake-chroot-tool.calls");
+        String content = "#!/bin/bash\n"
+                + "wait_ms() { sleep $(awk \"BEGIN { print $1 / 1000 }\"); }\n"
+                + "written() { stat -c %s \"$1\" >> '" + log.getAbsolutePath() + "'; }\n"
+                + "action=$1; shift\n"
+                + "base=; save=0; root=; configdir=; step=; extra=\n"
+                + "while [ $# -gt 0 ]; do\n"
+                + "  case \"$1\" in\n"
+                + "    --basetgz|--basepath) base=$2; shift 2 ;;\n"
+                + "    --save-after-exec) save=1; shift ;;\n"
+                + "    -r) root=$2; shift 2 ;;\n"
+                + "    --configdir) configdir=$2; shift 2 ;;\n"
+                + "    --chroot) step=build; shift ;;\n"
+                + "    --install) step=install; shift ;;\n"
+                + "    --extrapackages) step=install; extra=$2; shift 2 ;;\n"
+                + "    --update) step=update; shift ;;\n"
+                + "    --) break ;;\n"
+                + "    *) shift ;;\n"
+                + "  esac\n"
+                + "done\n"
+                + "echo \"$action $step\" >> '" + calls.getAbsolutePath() + "'\n"
+                + "case \"$action\" in\n"
+                + "  --help|--version) echo '1.0 fake chroot tool --basetgz --basepath' ;;\n"
+                + "  --create)\n"
+                + "    wait_ms " + updateMs + "; wait_ms " + packMs + "\n"
+                + "    head -c " + imageMb + "M /dev/urandom > \"$base.tmp\" && mv \"$base.tmp\" \"$base\" && written \"$base\" ;;\n"
+                + "  --update|--execute)\n"
+                + "    wait_ms " + unpackMs + "\n"
+                + "    if [ \"$action\" = --update ]; then wait_ms " + updateMs + "; save=1; else wait_ms " + buildMs + "; fi\n"
+                + "    if [ $save = 1 ]; then\n"
+                + "      wait_ms " + packMs + "\n"
+                // installed packages end up at the end of the image
+                + "      cp \"$base\" \"$base.tmp\" && { [ -z \"$extra\" ] || echo \"$extra\" >> \"$base.tmp\"; }\n"
+                + "      mv \"$base.tmp\" \"$base\" && written \"$base\"\n"
+                + "    fi ;;\n"
+                + "  --init)\n"
+                // mock unpacks the root cache, which the first run creates
+                + "    cache=$(sed -n \"s/^config_opts\\['cache_topdir'\\] = '\\(.*\\)'$/\\1/p\" \"$configdir/$root.cfg\")/$root/root_cache/cache.tar.gz\n"
+                + "    if [ ! -f \"$cache\" ]; then\n"
+                + "      wait_ms " + updateMs + "; wait_ms " + packMs + "\n"
+                + "      mkdir -p \"$(dirname \"$cache\")\" && head -c " + imageMb + "M /dev/urandom > \"$cache\" && written \"$cache\"\n"
+                + "    fi\n"
+                + "    wait_ms " + unpackMs + "; written \"$cache\" ;;\n"
+                + "  --no-clean)\n"
+                + "    if [ \"$step\" = build ]; then wait_ms " + buildMs + "; else wait_ms " + updateMs + "; fi ;;\n"
+                + "esac\n";
+        FileWriter writer = new FileWriter(script);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        script.setExecutable(true);
+    }
+
+    public File getScript() {
+        return script;
+    }
+
+    /**
+     * Returns the number of bytes written to images so far.
+     */
+    public long getBytesWritten() throws IOException {
+        if (!log.exists()) {
+            return 0;
+        }
+        long bytes = 0;
+        List<String> lines = FileUtils.readLines(log);
+        for (String line : lines) {
+            if (line.trim().length() > 0) {
+                bytes += Long.parseLong(line.trim());
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the action of every invocation so far, followed by install,
+     * update or build if the invocation did that inside the chroot.
+     */
+    public List<String> getCalls() throws IOException {
+        if (!calls.exists()) {
+            return Collections.emptyList();
+        }
+        return FileUtils.readLines(calls);
+    }
+
+    public void reset() {
+        log.delete();
+        calls.delete();
+    }
+}
@@ -61,4 +61,26 @@ public class ChrootToolsetTest extends HudsonTestCase {
         descriptor.setInstallations(tool);
         assertFalse(tool.getLastModified() == timestamp);
     }
+
+    public void testLookupByName() {
+        List<ToolProperty<ChrootToolset>> properties = new ArrayList<ToolProperty<ChrootToolset>>();
+        ChrootToolset.DescriptorImpl descriptor = new ChrootToolset.DescriptorImpl();
+        ChrootToolset first = new ChrootToolset("first", "./", "pbuilder", properties);
+        ChrootToolset second = new ChrootToolset("second", "./", "pbuilder", properties);
+        descriptor.setInstallations(first, second);
+        assertSame(second, descriptor.getInstallation("second"));
+        descriptor.setInstallations(first);
+        assertNull(descriptor.getInstallation("second"));
+        assertSame(first, descriptor.getInstallation("first"));
+    }
+
+    public void testPropertyEquality() {
+        List<Repository> repos = new ArrayList<Repository>();
+        repos.add(new Repository("deb http://example.org sid main", "", "example"));
+        ChrootToolsetProperty a = new ChrootToolsetProperty("", "wget", "", "", repos);
+        ChrootToolsetProperty b = new ChrootToolsetProperty("", "wget", "", "", new ArrayList<Repository>(repos));
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertFalse(a.equals(new ChrootToolsetProperty("", "wget", "", "", null)));
+    }
 }
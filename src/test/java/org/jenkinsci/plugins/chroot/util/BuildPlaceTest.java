@@ -0,0 +1,58 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.FilePath;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ *
+ * @author rmohr
+ */
+public class BuildPlaceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMemAvailable() {
+        assertThat(BuildPlace.parseMemAvailable("MemTotal:       16314988 kB\nMemFree:          512000 kB\nMemAvailable:    8388608 kB\n"))
+                .isEqualTo(8192);
+        assertThat(BuildPlace.parseMemAvailable("MemTotal:       16314988 kB\nMemFree:          524288 kB\nBuffers:          524288 kB\nCached:          1048576 kB\n"))
+                .isEqualTo(2048);
+        assertThat(BuildPlace.parseMemAvailable("garbage")).isEqualTo(-1);
+    }
+
+    @Test
+    public void testBuildPlaceReservation() {
+        assertThat(BuildPlace.reserve("reserved", 4096, 1024)).isEqualTo(0);
+        assertThat(BuildPlace.reserve("reserved", 4096, 1024)).isEqualTo(1024);
+        assertThat(BuildPlace.reserve("reserved", 4096, 1024)).isEqualTo(2048);
+        // 1024 MB left, which does not leave the reserve
+        assertThat(BuildPlace.reserve("reserved", 4096, 1024)).isEqualTo(-1);
+        assertThat(BuildPlace.reserve("other", 4096, 1024)).isEqualTo(0);
+        BuildPlace.unreserve("reserved", 1024);
+        assertThat(BuildPlace.getReserved("reserved")).isEqualTo(2048);
+        assertThat(BuildPlace.reserve("reserved", 4096, 1024)).isEqualTo(2048);
+        assertThat(BuildPlace.reserve("reserved", -1, 1024)).isEqualTo(3072);
+    }
+
+    @Test
+    public void testBuildPlaceEstimate() throws IOException, InterruptedException {
+        FilePath dir = new FilePath(folder.getRoot());
+        FilePath tgz = dir.child("test.tgz");
+        tgz.write(new String(new char[1024 * 1024]), null);
+        FilePath tar = dir.child("test.tar");
+        tar.write(new String(new char[2 * 1024 * 1024]), null);
+        assertThat(BuildPlace.estimateSize(tgz)).isEqualTo(4);
+        assertThat(BuildPlace.estimateSize(tar)).isEqualTo(3);
+        assertThat(BuildPlace.disk().getArguments()).isEmpty();
+    }
+}
@@ -5,8 +5,11 @@
 package org.jenkinsci.plugins.chroot.util;
 
 import hudson.FilePath;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Random;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import org.junit.Rule;
@@ -47,4 +50,55 @@ public class ChrootUtilTest {
         randomFile.delete();
         randomFile.delete();
     }
+
+    @Test
+    public void testFingerprint() throws IOException, InterruptedException {
+        FilePath randomFile = new FilePath(folder.newFile());
+        randomFile.write("testcontent", null);
+        ChrootUtil.saveDigest(randomFile);
+        assertThat(ChrootUtil.getFingerprintFile(randomFile).exists()).isTrue();
+        File file = new File(randomFile.getRemote());
+        // a matching fingerprint vouches for the stored digest without rehashing
+        ChrootUtil.getDigestFile(randomFile).write("0123", null);
+        Fingerprint.of(file, "0123").save(file);
+        assertThat(ChrootUtil.isFileIntact(randomFile)).isTrue();
+        ChrootUtil.getFingerprintFile(randomFile).delete();
+        assertThat(ChrootUtil.isFileIntact(randomFile)).isFalse();
+        ChrootUtil.saveDigest(randomFile);
+        assertThat(ChrootUtil.loadDigest(randomFile)).isEqualTo(randomFile.digest());
+        assertThat(ChrootUtil.isFileIntact(randomFile)).isTrue();
+    }
+
+    @Test
+    public void testChunkedDigest() throws IOException, InterruptedException {
+        FilePath randomFile = new FilePath(folder.newFile());
+        byte[] content = new byte[10000];
+        new Random(42).nextBytes(content);
+        randomFile.copyFrom(new ByteArrayInputStream(content));
+        DigestAlgorithm.Hasher hasher = new DigestAlgorithm.ChunkedHasher(1000);
+        hasher.update(content, 0, 1500);
+        hasher.update(content, 1500, content.length - 1500);
+        String streamed = hasher.finish();
+        assertThat(streamed).startsWith(DigestAlgorithm.CHUNKED_MD5.getPrefix());
+        assertThat(DigestAlgorithm.chunkedDigest(new File(randomFile.getRemote()), 1000, 4)).isEqualTo(streamed);
+        assertThat(DigestAlgorithm.forDigest(streamed)).isEqualTo(DigestAlgorithm.CHUNKED_MD5);
+        assertThat(DigestAlgorithm.forDigest(randomFile.digest())).isEqualTo(DigestAlgorithm.MD5);
+    }
+
+    @Test
+    public void testShellQuote() {
+        assertThat(ChrootUtil.shellQuote("/var/lib/jenkins/sid.tgz")).isEqualTo("'/var/lib/jenkins/sid.tgz'");
+        assertThat(ChrootUtil.shellQuote("/tmp/it's here")).isEqualTo("'/tmp/it'\\''s here'");
+    }
+
+    @Test
+    public void testCompressionSuffix() {
+        assertThat(Compression.forImage("sid.pigz.tgz")).isEqualTo(Compression.PIGZ);
+        assertThat(Compression.forImage("sid.tgz")).isEqualTo(Compression.GZIP);
+        assertThat(Compression.forImage("sid.tar.zst")).isEqualTo(Compression.ZSTD);
+        assertThat(Compression.forImage("sid.tar")).isEqualTo(Compression.NONE);
+        assertThat(Compression.stripSuffix("sid.pigz.tgz")).isEqualTo("sid");
+        assertThat(Compression.stripSuffix("sid.tar.zst")).isEqualTo("sid");
+        assertThat(Compression.forName("bogus")).isEqualTo(Compression.GZIP);
+    }
 }
@@ -0,0 +1,46 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.FilePath;
+import java.io.File;
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ *
+ * @author rmohr
+ */
+public class CompilerCacheTest {
+
+    @Test
+    public void testCompilerCacheStats() {
+        String ccache4 = "cache_miss\t12\ncache_size_kibibyte\t4096\ndirect_cache_hit\t30\npreprocessed_cache_hit\t5\n";
+        assertThat(CompilerCache.parseStats(ccache4)).isEqualTo(new long[]{35, 12});
+        String ccache3 = "cache directory                     /cache\n"
+                + "cache hit (direct)                    30\n"
+                + "cache hit (preprocessed)               5\n"
+                + "cache miss                            12\n"
+                + "files in cache                        99\n";
+        assertThat(CompilerCache.parseStats(ccache3)).isEqualTo(new long[]{35, 12});
+        assertThat(CompilerCache.parseStats("")).isNull();
+
+        CompilerCache.Statistics statistics = new CompilerCache.Statistics();
+        statistics.record(3, 1);
+        assertThat(statistics.toString()).isEqualTo("3 of 4 compilations served from cache (75%)");
+    }
+
+    @Test
+    public void testCompilerCacheSetup() {
+        String setup = CompilerCache.getSetup(new FilePath(new File("/cache")), new FilePath(new File("/ws")), 512,
+                new FilePath(new File("/ws/before")), new FilePath(new File("/ws/after")));
+        assertThat(setup).contains("export CCACHE_DIR='/cache'\n");
+        assertThat(setup).contains("export CCACHE_BASEDIR='/ws'\n");
+        assertThat(setup).contains("ccache -M 512M");
+        assertThat(setup).contains("> '/ws/before'");
+        assertThat(setup).contains("trap \"{ ccache --print-stats 2>/dev/null || ccache -s; } > \\\"/ws/after\\\"\" EXIT");
+    }
+}
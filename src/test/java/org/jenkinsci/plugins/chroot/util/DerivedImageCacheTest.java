@@ -0,0 +1,49 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.FilePath;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ *
+ * @author rmohr
+ */
+public class DerivedImageCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCheckoutAndPublish() throws IOException, InterruptedException {
+        FilePath root = new FilePath(folder.getRoot());
+        FilePath cache = root.child("derived");
+        String key = DerivedImageCache.getKey("base", Arrays.asList("wget", "curl", "wget"));
+        assertThat(DerivedImageCache.getKey("base", Arrays.asList("curl", "wget"))).isEqualTo(key);
+        assertThat(DerivedImageCache.getKey("other", Arrays.asList("curl", "wget"))).isNotEqualTo(key);
+
+        FilePath target = root.child("ws").child("base.tgz");
+        assertThat(DerivedImageCache.checkout(cache, key, target)).isFalse();
+
+        FilePath derived = root.child("derived.tgz");
+        derived.write("derivedcontent", null);
+        ChrootUtil.saveDigest(derived);
+        DerivedImageCache.publish(cache, key, derived, 1024);
+        assertThat(DerivedImageCache.checkout(cache, key, target)).isTrue();
+        assertThat(target.readToString()).isEqualTo("derivedcontent");
+        assertThat(DerivedImageCache.loadKey(target)).isEqualTo(key);
+
+        // an entry bigger than the quota is evicted right away
+        String other = DerivedImageCache.getKey("base", Arrays.asList("gcc"));
+        DerivedImageCache.publish(cache, other, derived, 1);
+        assertThat(DerivedImageCache.checkout(cache, key, target)).isFalse();
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ *
+ * @author rmohr
+ */
+public class EnvironmentFileTest {
+
+    @Test
+    public void testEnvironmentFile() {
+        Map<String, String> env = new TreeMap<String, String>();
+        env.put("BUILD_ID", "it's $HOME");
+        env.put("SECRET_TOKEN", "x");
+        env.put("not-a-name", "x");
+        String rendered = new EnvironmentFile(null, Pattern.compile(".*TOKEN.*")).render(env);
+        assertThat(rendered).isEqualTo("if [ -z \"${BUILD_ID}\" ]; then export BUILD_ID='it'\\''s $HOME'; fi\n");
+        assertThat(new EnvironmentFile(Pattern.compile("BUILD_.*"), null).isExported("SECRET_TOKEN")).isFalse();
+    }
+
+    @Test
+    public void testEnvironmentFileInvalidPattern() {
+        assertThat(EnvironmentFile.of("", " ").isExported("SECRET_TOKEN")).isTrue();
+        assertThat(EnvironmentFile.of("", ".*TOKEN(").isExported("BUILD_ID")).isFalse();
+        assertThat(EnvironmentFile.of("BUILD_[", "").isExported("BUILD_ID")).isFalse();
+        assertThat(EnvironmentFile.of("BUILD_.*", ".*TOKEN.*").isExported("BUILD_ID")).isTrue();
+    }
+}
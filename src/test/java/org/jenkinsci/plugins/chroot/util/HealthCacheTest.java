@@ -0,0 +1,165 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.tools.ToolInstallation;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jenkinsci.plugins.chroot.ChrootGlobalConfiguration;
+import org.jenkinsci.plugins.chroot.extensions.ChrootWorker;
+import org.jenkinsci.plugins.chroot.tools.Repository;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ *
+ * @author rmohr
+ */
+public class HealthCacheTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    /**
+     * Worker whose health check answers as told and counts its runs.
+     */
+    private static final class CheckedWorker extends ChrootWorker {
+
+        private final String name;
+        private final AtomicInteger checks = new AtomicInteger();
+        private volatile boolean healthy = true;
+        private volatile boolean broken;
+
+        CheckedWorker(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getTool() {
+            return name;
+        }
+
+        @Override
+        public boolean healthCheck(Launcher launcher) {
+            checks.incrementAndGet();
+            if (broken) {
+                throw new IllegalStateException("node went away");
+            }
+            return healthy;
+        }
+
+        @Override
+        public List<String> getDefaultPackages() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<String> getFallbackPackages() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean cleanUp(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath tarBall) {
+            return true;
+        }
+
+        @Override
+        public FilePath setUp(ToolInstallation tool, Node node, TaskListener log) {
+            return null;
+        }
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath tarBall, String commands, boolean runAsRoot) {
+            return true;
+        }
+
+        @Override
+        public boolean installPackages(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath tarBall, List<String> packages, boolean forceInstall) {
+            return true;
+        }
+
+        @Override
+        public boolean addRepositories(FilePath tarBall, Launcher launcher, TaskListener log, List<Repository> repositories) {
+            return true;
+        }
+
+        @Override
+        public boolean updateRepositories(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, FilePath tarBall) {
+            return true;
+        }
+    }
+
+    private static void awaitChecks(CheckedWorker worker, int checks) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (worker.checks.get() < checks) {
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testResultIsUsedForTtl() {
+        ChrootGlobalConfiguration.get().setHealthCheckTtl(60);
+        CheckedWorker worker = new CheckedWorker("ttl");
+        assertThat(HealthCache.isHealthy(worker, j.jenkins)).isTrue();
+        worker.healthy = false;
+        assertThat(HealthCache.isHealthy(worker, j.jenkins)).isTrue();
+        assertThat(worker.checks.get()).isEqualTo(1);
+        assertThat(HealthCache.getResults(j.jenkins)).onProperty("worker").contains("ttl");
+    }
+
+    @Test
+    public void testStaleResultIsRefreshedInBackground() throws InterruptedException {
+        ChrootGlobalConfiguration.get().setHealthCheckTtl(0);
+        CheckedWorker worker = new CheckedWorker("stale");
+        assertThat(HealthCache.isHealthy(worker, j.jenkins)).isTrue();
+        worker.healthy = false;
+        Thread.sleep(5);
+        // the stale result is returned while the check runs again
+        assertThat(HealthCache.isHealthy(worker, j.jenkins)).isTrue();
+        awaitChecks(worker, 2);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (HealthCache.isHealthy(worker, j.jenkins)) {
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testFailedRefreshIsRetried() throws InterruptedException {
+        ChrootGlobalConfiguration.get().setHealthCheckTtl(0);
+        CheckedWorker worker = new CheckedWorker("broken");
+        assertThat(HealthCache.isHealthy(worker, j.jenkins)).isTrue();
+        worker.broken = true;
+        Thread.sleep(5);
+        assertThat(HealthCache.isHealthy(worker, j.jenkins)).isTrue();
+        awaitChecks(worker, 2);
+
+        // the failed refresh did not block further refreshes
+        worker.broken = false;
+        worker.healthy = false;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (HealthCache.isHealthy(worker, j.jenkins)) {
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(10);
+        }
+        assertThat(worker.checks.get()).isGreaterThanOrEqualTo(3);
+    }
+}
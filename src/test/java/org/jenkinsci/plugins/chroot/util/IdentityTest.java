@@ -0,0 +1,31 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import java.io.IOException;
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ *
+ * @author rmohr
+ */
+public class IdentityTest {
+
+    @Test
+    public void testIdentity() throws IOException {
+        Identity identity = Identity.parse("jenkins\n107\n65534\nnogroup\n");
+        assertThat(identity.getUserName()).isEqualTo("jenkins");
+        assertThat(identity.getUID()).isEqualTo(107);
+        assertThat(identity.getGID()).isEqualTo(65534);
+        assertThat(identity.getGroupName()).isEqualTo("nogroup");
+    }
+
+    @Test(expected = IOException.class)
+    public void testIdentityGarbage() throws IOException {
+        Identity.parse("id: unknown user\n");
+    }
+}
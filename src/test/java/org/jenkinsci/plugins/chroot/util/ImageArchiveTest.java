@@ -0,0 +1,80 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ *
+ * @author rmohr
+ */
+public class ImageArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FilePath image(String content) throws IOException, InterruptedException {
+        FilePath image = new FilePath(folder.getRoot()).child("node").child("base.tgz");
+        image.write(content, null);
+        ChrootUtil.saveDigest(image);
+        return image;
+    }
+
+    @Test
+    public void testUploadAndFind() throws IOException, InterruptedException {
+        FilePath versions = new FilePath(folder.getRoot()).child("archive").child("base").child("fingerprint");
+        assertThat(ImageArchive.find(versions, "base.tgz")).isNull();
+
+        FilePath first = image("first");
+        assertThat(ImageArchive.upload(versions, first, 2, TaskListener.NULL)).isTrue();
+        FilePath archived = ImageArchive.find(versions, "base.tgz");
+        assertThat(archived.readToString()).isEqualTo("first");
+        assertThat(archived.getParent().getName()).isEqualTo(ChrootUtil.loadDigest(first));
+        archived.touch(System.currentTimeMillis() - 1000);
+
+        FilePath second = image("second");
+        assertThat(ImageArchive.upload(versions, second, 2, TaskListener.NULL)).isTrue();
+        assertThat(ImageArchive.find(versions, "base.tgz").readToString()).isEqualTo("second");
+        assertThat(ImageArchive.find(versions, "base.tar")).isNull();
+    }
+
+    @Test
+    public void testPrune() throws IOException, InterruptedException {
+        FilePath platform = new FilePath(folder.getRoot()).child("archive").child("base").child("amd64-bookworm");
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 4; i++) {
+            FilePath version = platform.child("fingerprint" + (i % 2)).child("version" + i);
+            version.child("base.tgz").write("image" + i, null);
+            FilePath digest = version.child("base.tgz" + ChrootUtil.MD5_SUFFIX);
+            digest.write("digest" + i, null);
+            digest.touch(now - TimeUnit.HOURS.toMillis(4 - i));
+        }
+        FilePath stale = platform.child("fingerprint0").child("stale");
+        stale.child("base.tgz.partial").write("", null);
+        stale.touch(now - TimeUnit.DAYS.toMillis(2));
+        FilePath resumable = platform.child("fingerprint1").child("resumable");
+        resumable.child("base.tgz.partial").write("", null);
+
+        ImageArchive.prune(platform, 2, now);
+        assertThat(platform.child("fingerprint0").child("version0").exists()).isFalse();
+        assertThat(platform.child("fingerprint1").child("version1").exists()).isFalse();
+        assertThat(platform.child("fingerprint0").child("version2").exists()).isTrue();
+        assertThat(platform.child("fingerprint1").child("version3").exists()).isTrue();
+        assertThat(stale.exists()).isFalse();
+        assertThat(resumable.exists()).isTrue();
+
+        ImageArchive.prune(platform, 1, now);
+        assertThat(platform.child("fingerprint0").exists()).isFalse();
+        assertThat(platform.child("fingerprint1").child("version3").exists()).isTrue();
+    }
+}
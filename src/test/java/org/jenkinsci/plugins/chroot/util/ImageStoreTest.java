@@ -0,0 +1,51 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.FilePath;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ *
+ * @author rmohr
+ */
+public class ImageStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCheckoutAndPrune() throws IOException, InterruptedException {
+        FilePath root = new FilePath(folder.getRoot());
+        FilePath store = root.child("store");
+        FilePath image = root.child("base.tgz");
+        image.write("imagecontent", null);
+        ChrootUtil.saveDigest(image);
+
+        FilePath first = root.child("ws1").child("base.tgz");
+        FilePath second = root.child("ws2").child("base.tgz");
+        ImageStore.checkout(store, image, first);
+        ImageStore.checkout(store, image, second);
+
+        assertThat(first.readToString()).isEqualTo("imagecontent");
+        assertThat(second.readToString()).isEqualTo("imagecontent");
+        assertThat(ChrootUtil.loadDigest(first)).isEqualTo(image.digest());
+        assertThat(store.list()).hasSize(1);
+        assertThat(ImageStore.prune(store)).isEqualTo(0);
+
+        // simulate pbuilder replacing the image in every place
+        for (FilePath file : new FilePath[]{image, first, second}) {
+            file.delete();
+            file.write("newcontent", null);
+        }
+        assertThat(ImageStore.prune(store)).isEqualTo(1);
+        assertThat(store.list()).isEmpty();
+    }
+}
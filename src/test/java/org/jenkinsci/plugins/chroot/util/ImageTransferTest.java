@@ -0,0 +1,128 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ *
+ * @author rmohr
+ */
+public class ImageTransferTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FilePath randomImage(String name, int size) throws IOException {
+        File file = new File(folder.newFolder("peer"), name);
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return new FilePath(file);
+    }
+
+    @Test
+    public void testChunkedFetch() throws IOException, InterruptedException {
+        FilePath source = randomImage("base.tgz", 100 * 1024 + 17);
+        String digest = ChrootUtil.saveDigest(source).readToString().trim();
+        FilePath target = new FilePath(folder.getRoot()).child("node").child("base.tgz");
+
+        assertThat(ImageTransfer.fetch(source, target, digest, 4, 4096, TaskListener.NULL)).isTrue();
+        assertThat(target.digest()).isEqualTo(source.digest());
+        assertThat(ChrootUtil.loadDigest(target)).isEqualTo(digest);
+        assertThat(ChrootUtil.isFileIntact(target)).isTrue();
+        // neither the snapshot nor the partial copy are left behind
+        assertThat(source.getParent().list()).hasSize(3);
+        assertThat(target.getParent().list()).hasSize(3);
+    }
+
+    @Test
+    public void testDigestMismatch() throws IOException, InterruptedException {
+        FilePath source = randomImage("base.tgz", 10 * 1024);
+        FilePath target = new FilePath(folder.getRoot()).child("node").child("base.tgz");
+
+        assertThat(ImageTransfer.fetch(source, target, "00000000000000000000000000000000", 2, 4096, TaskListener.NULL)).isFalse();
+        assertThat(target.exists()).isFalse();
+        assertThat(target.getParent().list()).isEmpty();
+    }
+
+    /**
+     * Writes a partial copy of source in which only the listed chunks are
+     * correct.
+     */
+    private void writePartial(FilePath source, FilePath target, String digest, int chunkSize, int... chunks) throws IOException, InterruptedException {
+        byte[] data = new byte[(int) source.length()];
+        byte[] content = FileUtils.readFileToByteArray(new File(source.getRemote()));
+        StringBuilder progress = new StringBuilder(ImageTransfer.getProgressHeader(digest, data.length, chunkSize)).append("\n");
+        for (int chunk : chunks) {
+            int offset = chunk * chunkSize;
+            System.arraycopy(content, offset, data, offset, Math.min(chunkSize, data.length - offset));
+            progress.append(offset).append(";\n");
+        }
+        target.getParent().mkdirs();
+        FileUtils.writeByteArrayToFile(new File(ImageTransfer.getPartialFile(target).getRemote()), data);
+        ImageTransfer.getProgressFile(target).write(progress.toString(), null);
+    }
+
+    @Test
+    public void testResume() throws IOException, InterruptedException {
+        FilePath source = randomImage("base.tar", 40 * 1024);
+        String digest = ChrootUtil.saveDigest(source).readToString().trim();
+        FilePath target = new FilePath(folder.getRoot()).child("node").child("base.tar");
+        writePartial(source, target, digest, 4096, 0, 1, 2, 5);
+
+        assertThat(ImageTransfer.fetch(source, target, digest, 2, 4096, TaskListener.NULL)).isTrue();
+        assertThat(target.digest()).isEqualTo(source.digest());
+        assertThat(ImageTransfer.getPartialFile(target).exists()).isFalse();
+        assertThat(ImageTransfer.getProgressFile(target).exists()).isFalse();
+    }
+
+    @Test
+    public void testResumeSkipsRecordedChunks() throws IOException, InterruptedException {
+        FilePath source = randomImage("base.tgz", 40 * 1024);
+        String digest = ChrootUtil.saveDigest(source).readToString().trim();
+        FilePath target = new FilePath(folder.getRoot()).child("node").child("base.tgz");
+        writePartial(source, target, digest, 4096, 0, 1);
+        // a chunk which is recorded as done is not transferred again
+        RandomAccessFile out = new RandomAccessFile(ImageTransfer.getPartialFile(target).getRemote(), "rw");
+        out.write(new byte[16]);
+        out.close();
+
+        assertThat(ImageTransfer.fetch(source, target, digest, 2, 4096, TaskListener.NULL)).isFalse();
+        assertThat(ImageTransfer.getPartialFile(target).exists()).isFalse();
+        // the next attempt starts over
+        assertThat(ImageTransfer.fetch(source, target, digest, 2, 4096, TaskListener.NULL)).isTrue();
+    }
+
+    @Test
+    public void testResumeOtherImage() throws IOException, InterruptedException {
+        FilePath source = randomImage("base.tgz", 40 * 1024);
+        String digest = ChrootUtil.saveDigest(source).readToString().trim();
+        FilePath target = new FilePath(folder.getRoot()).child("node").child("base.tgz");
+        writePartial(source, target, "00000000000000000000000000000000", 4096, 0, 1, 2, 3);
+        RandomAccessFile out = new RandomAccessFile(ImageTransfer.getPartialFile(target).getRemote(), "rw");
+        out.write(new byte[16]);
+        out.close();
+
+        assertThat(ImageTransfer.fetch(source, target, digest, 2, 4096, TaskListener.NULL)).isTrue();
+    }
+}
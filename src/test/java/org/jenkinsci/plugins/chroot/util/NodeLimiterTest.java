@@ -0,0 +1,148 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ *
+ * @author rmohr
+ */
+public class NodeLimiterTest {
+
+    private static void awaitWaiting(NodeLimiter.Limit limit, int waiting) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (limit.getOccupancy().getWaiting() < waiting) {
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static Thread start(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void testPermits() throws InterruptedException {
+        NodeLimiter.Limit limit = new NodeLimiter.Limit(2);
+        NodeLimiter.Permit first = NodeLimiter.acquire(limit, "node", TaskListener.NULL);
+        NodeLimiter.Permit second = NodeLimiter.acquire(limit, "node", TaskListener.NULL);
+        assertThat(limit.getOccupancy().getRunning()).isEqualTo(2);
+        assertThat(limit.getOccupancy().getSlots()).isEqualTo(2);
+
+        // releasing twice does not free a second slot
+        first.release();
+        first.release();
+        assertThat(limit.getOccupancy().getRunning()).isEqualTo(1);
+        second.release();
+        assertThat(limit.getOccupancy().getRunning()).isEqualTo(0);
+
+        // without a limit every setup gets an empty permit
+        NodeLimiter.acquire(null, "node", TaskListener.NULL).release();
+    }
+
+    @Test
+    public void testWaitersInOrderOfArrival() throws InterruptedException {
+        final NodeLimiter.Limit limit = new NodeLimiter.Limit(1);
+        NodeLimiter.Permit held = NodeLimiter.acquire(limit, "node", TaskListener.NULL);
+        final List<String> admitted = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> waiters = new ArrayList<Thread>();
+        for (final String name : new String[]{"first", "second", "third"}) {
+            waiters.add(start(new Runnable() {
+                public void run() {
+                    try {
+                        NodeLimiter.Permit permit = NodeLimiter.acquire(limit, "node", TaskListener.NULL);
+                        admitted.add(name);
+                        permit.release();
+                    } catch (InterruptedException ex) {
+                        admitted.add("interrupted");
+                    }
+                }
+            }));
+            awaitWaiting(limit, waiters.size());
+        }
+        held.release();
+        for (Thread waiter : waiters) {
+            waiter.join(10000);
+        }
+        assertThat(admitted).containsExactly("first", "second", "third");
+    }
+
+    @Test
+    public void testNoBargingAheadOfWaiters() throws InterruptedException {
+        final NodeLimiter.Limit limit = new NodeLimiter.Limit(1);
+        NodeLimiter.Permit held = NodeLimiter.acquire(limit, "node", TaskListener.NULL);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread waiter = start(new Runnable() {
+            public void run() {
+                try {
+                    NodeLimiter.Permit permit = NodeLimiter.acquire(limit, "node", TaskListener.NULL);
+                    done.await();
+                    permit.release();
+                } catch (InterruptedException ex) {
+                    // the test fails on the occupancy below
+                }
+            }
+        });
+        awaitWaiting(limit, 1);
+
+        // the slot is handed to the waiting setup, not to a new one which
+        // arrives right after the release
+        held.release();
+        final AtomicBoolean barged = new AtomicBoolean();
+        Thread late = start(new Runnable() {
+            public void run() {
+                ByteArrayOutputStream log = new ByteArrayOutputStream();
+                try {
+                    NodeLimiter.Permit permit = NodeLimiter.acquire(limit, "node", new StreamTaskListener(log));
+                    barged.set(!log.toString().contains("Waiting for one of 1 chroot setup slots on node"));
+                    permit.release();
+                } catch (InterruptedException ex) {
+                    barged.set(true);
+                }
+            }
+        });
+        done.countDown();
+        waiter.join(10000);
+        late.join(10000);
+        assertThat(barged.get()).isFalse();
+        assertThat(limit.getOccupancy().getRunning()).isEqualTo(0);
+    }
+
+    @Test
+    public void testInterruptedWaiterTakesNoSlot() throws InterruptedException {
+        final NodeLimiter.Limit limit = new NodeLimiter.Limit(1);
+        NodeLimiter.Permit held = NodeLimiter.acquire(limit, "node", TaskListener.NULL);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        Thread waiter = start(new Runnable() {
+            public void run() {
+                try {
+                    NodeLimiter.acquire(limit, "node", TaskListener.NULL);
+                } catch (InterruptedException ex) {
+                    interrupted.set(true);
+                }
+            }
+        });
+        awaitWaiting(limit, 1);
+        waiter.interrupt();
+        waiter.join(10000);
+        assertThat(interrupted.get()).isTrue();
+        assertThat(limit.getOccupancy().getWaiting()).isEqualTo(0);
+        held.release();
+        assertThat(limit.getOccupancy().getRunning()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import hudson.FilePath;
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ *
+ * @author rmohr
+ */
+public class PackageCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPackageKey() {
+        assertThat(PackageCache.getPackageKey(new File("libc6_2.36-9_amd64.deb"))).isEqualTo("libc6_amd64");
+        assertThat(PackageCache.getPackageKey(new File("libc6_2.36-9_i386.deb"))).isEqualTo("libc6_i386");
+        assertThat(PackageCache.getPackageKey(new File("gcc-c++-13.2.1-4.fc39.x86_64.rpm"))).isEqualTo("gcc-c++.x86_64");
+        assertThat(PackageCache.getPackageKey(new File("odd.deb"))).isEqualTo("odd.deb");
+    }
+
+    @Test
+    public void testPackageCacheTrim() throws IOException, InterruptedException {
+        FilePath cache = new FilePath(folder.newFolder());
+        String[] debs = {"libc6_2.31-13_amd64.deb", "libc6_2.36-9_amd64.deb", "libc6_2.37-1_amd64.deb",
+            "libc6_2.38-1_amd64.deb", "libc6_2.36-9_i386.deb"};
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < debs.length; i++) {
+            cache.child(debs[i]).write("deb", null);
+            cache.child(debs[i]).touch(now - (debs.length - i) * 1000L);
+        }
+        PackageCache.update(cache, PackageCache.snapshot(cache), "trim", 0);
+        assertThat(cache.child(debs[0]).exists()).isFalse();
+        for (int i = 1; i < debs.length; i++) {
+            assertThat(cache.child(debs[i]).exists()).isTrue();
+        }
+        assertThat(PackageCache.getStatistics("trim").getHits()).isEqualTo(1);
+    }
+
+    @Test
+    public void testPackageCacheTree() throws IOException, InterruptedException {
+        FilePath cache = new FilePath(folder.newFolder());
+        cache.child("dnf_cache").child("fedora").child("packages").child("make-4.4.1-2.fc39.x86_64.rpm").write("rpm", null);
+        Set<String> snapshot = PackageCache.snapshotTree(cache);
+        assertThat(snapshot).hasSize(1);
+        cache.child("dnf_cache").child("fedora").child("packages").child("gcc-13.2.1-4.fc39.x86_64.rpm").write("rpm", null);
+        PackageCache.record(cache, snapshot, "tree");
+        assertThat(PackageCache.getStatistics("tree").getMisses()).isEqualTo(1);
+        assertThat(PackageCache.getStatistics("tree").getPackages()).isEqualTo(1);
+        assertThat(PackageCache.getStatistics("tree").getBytes()).isEqualTo(3);
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.jenkinsci.plugins.chroot.util;
+
+import java.io.IOException;
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ *
+ * @author rmohr
+ */
+public class PlatformTest {
+
+    @Test
+    public void testPlatform() throws IOException {
+        Platform platform = Platform.parse("amd64\nbookworm\n");
+        assertThat(platform.getArchitecture()).isEqualTo("amd64");
+        assertThat(platform.getDistribution()).isEqualTo("bookworm");
+        assertThat(platform.getKey(null)).isEqualTo("amd64-bookworm");
+        assertThat(platform.getKey("--distribution sid --mirror http://deb.debian.org/debian")).isEqualTo("amd64");
+        assertThat(platform.getKey("--distribution=sid")).isEqualTo("amd64");
+        assertThat(Platform.parse("arm64\n").getKey("")).isEqualTo("arm64");
+        assertThat(Platform.parse("x86_64\nbook/worm\n").getKey(null)).isEqualTo("x86_64-book_worm");
+    }
+
+    @Test(expected = IOException.class)
+    public void testPlatformGarbage() throws IOException {
+        Platform.parse("\n");
+    }
+}